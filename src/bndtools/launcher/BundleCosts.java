@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Attributes the resources used while starting or updating each bundle: wall
+ * time, CPU time and bytes allocated by the thread doing the work, and the
+ * threads created during the operation that are still alive when it ends.
+ * Measurements are only taken once enabled; CPU time and allocations are -1
+ * where the JVM does not support measuring them. All methods are thread safe.
+ */
+class BundleCosts {
+
+	static final String OPERATION_START = "start";
+	static final String OPERATION_UPDATE = "update";
+
+	static final String SORT_WALL = "wall";
+	static final String SORT_CPU = "cpu";
+	static final String SORT_ALLOCATED = "alloc";
+	static final String SORT_THREADS = "threads";
+
+	// The number of bundles listed in the log summary
+	private static final int SUMMARY_SIZE = 5;
+
+	private final Logger log;
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	// The latest cost of each operation on each bundle, keyed by operation and location
+	private final Map<String, Cost> costs = new LinkedHashMap<String, Cost>();
+	private volatile boolean enabled = false;
+	private int unreported = 0;
+
+	BundleCosts(Logger log) {
+		this.log = log;
+	}
+
+	static final class Cost {
+		final String location;
+		final long bundleId;
+		final String operation;
+		final long wallNanos;
+		final long cpuNanos;
+		final long allocatedBytes;
+		final List<String> newThreads;
+
+		Cost(String location, long bundleId, String operation, long wallNanos, long cpuNanos, long allocatedBytes, List<String> newThreads) {
+			this.location = location;
+			this.bundleId = bundleId;
+			this.operation = operation;
+			this.wallNanos = wallNanos;
+			this.cpuNanos = cpuNanos;
+			this.allocatedBytes = allocatedBytes;
+			this.newThreads = newThreads;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %s (id %d): wall %.3fms, cpu %.3fms, allocated %d bytes, %d new thread(s)%s", operation, location, bundleId,
+					wallNanos / 1e6, cpuNanos / 1e6, allocatedBytes, newThreads.size(), newThreads.isEmpty() ? "" : " " + newThreads);
+		}
+	}
+
+	/**
+	 * The state captured when an operation begins.
+	 */
+	static final class Probe {
+		final long wallStart;
+		final long cpuStart;
+		final long allocatedStart;
+		final long[] threadIds;
+
+		Probe(long wallStart, long cpuStart, long allocatedStart, long[] threadIds) {
+			this.wallStart = wallStart;
+			this.cpuStart = cpuStart;
+			this.allocatedStart = allocatedStart;
+			this.threadIds = threadIds;
+		}
+	}
+
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Begins measuring an operation on the calling thread, which must also be
+	 * the thread that calls {@link #end(Probe, Bundle, String)}.
+	 *
+	 * @return The probe to pass to {@link #end(Probe, Bundle, String)}, or
+	 *         {@code null} if measurement is disabled.
+	 */
+	Probe begin() {
+		if(!enabled)
+			return null;
+		long[] threadIds = threadBean.getAllThreadIds();
+		Arrays.sort(threadIds);
+		return new Probe(System.nanoTime(), currentThreadCpuTime(), LauncherMetrics.currentThreadAllocatedBytes(), threadIds);
+	}
+
+	void end(Probe probe, Bundle bundle, String operation) {
+		if(probe == null)
+			return;
+		long wallNanos = System.nanoTime() - probe.wallStart;
+		long cpu = currentThreadCpuTime();
+		long cpuNanos = probe.cpuStart < 0 || cpu < 0 ? -1 : cpu - probe.cpuStart;
+		long allocated = LauncherMetrics.currentThreadAllocatedBytes();
+		long allocatedBytes = probe.allocatedStart < 0 || allocated < 0 ? -1 : allocated - probe.allocatedStart;
+
+		// Threads that did not exist when the operation began
+		List<String> newThreads = new ArrayList<String>(0);
+		for (long id : threadBean.getAllThreadIds()) {
+			if(Arrays.binarySearch(probe.threadIds, id) < 0) {
+				ThreadInfo info = threadBean.getThreadInfo(id);
+				if(info != null)
+					newThreads.add(info.getThreadName());
+			}
+		}
+
+		Cost cost = new Cost(bundle.getLocation(), bundle.getBundleId(), operation, wallNanos, cpuNanos, allocatedBytes, newThreads);
+		synchronized (this) {
+			costs.put(operation + " " + cost.location, cost);
+			unreported++;
+		}
+		log.log(Level.FINE, "Bundle {0}", cost);
+	}
+
+	/**
+	 * Logs the most expensive operations measured since the last summary, if
+	 * there were any.
+	 */
+	void logSummary() {
+		synchronized (this) {
+			if(unreported == 0)
+				return;
+			unreported = 0;
+		}
+		List<Cost> sorted = getCosts(SORT_WALL);
+		StringBuilder message = new StringBuilder("Most expensive bundle operations by wall time:");
+		for (int i = 0; i < sorted.size() && i < SUMMARY_SIZE; i++) {
+			message.append(String.format("%n\t%s", sorted.get(i)));
+		}
+		log.info(message.toString());
+	}
+
+	/**
+	 * Returns the latest cost of each operation on each bundle, most expensive
+	 * first.
+	 *
+	 * @param sortKey
+	 *            One of {@link #SORT_WALL}, {@link #SORT_CPU},
+	 *            {@link #SORT_ALLOCATED} or {@link #SORT_THREADS}.
+	 */
+	List<Cost> getCosts(final String sortKey) {
+		List<Cost> sorted;
+		synchronized (this) {
+			sorted = new ArrayList<Cost>(costs.values());
+		}
+		Collections.sort(sorted, new Comparator<Cost>() {
+			public int compare(Cost c1, Cost c2) {
+				long v1 = sortValue(c1, sortKey);
+				long v2 = sortValue(c2, sortKey);
+				return v1 < v2 ? 1 : (v1 == v2 ? 0 : -1);
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * Returns the costs as lines, most expensive first, or {@code null} if
+	 * the sort key is not recognised.
+	 */
+	List<String> report(String sortKey) {
+		if(!SORT_WALL.equals(sortKey) && !SORT_CPU.equals(sortKey) && !SORT_ALLOCATED.equals(sortKey) && !SORT_THREADS.equals(sortKey))
+			return null;
+		List<Cost> sorted = getCosts(sortKey);
+		List<String> lines = new ArrayList<String>(sorted.size());
+		for (Cost cost : sorted) {
+			lines.add(cost.toString());
+		}
+		return lines;
+	}
+
+	private static long sortValue(Cost cost, String sortKey) {
+		if(SORT_CPU.equals(sortKey))
+			return cost.cpuNanos;
+		if(SORT_ALLOCATED.equals(sortKey))
+			return cost.allocatedBytes;
+		if(SORT_THREADS.equals(sortKey))
+			return cost.newThreads.size();
+		return cost.wallNanos;
+	}
+
+	private long currentThreadCpuTime() {
+		if(!threadBean.isCurrentThreadCpuTimeSupported() || !threadBean.isThreadCpuTimeEnabled())
+			return -1;
+		return threadBean.getCurrentThreadCpuTime();
+	}
+}
@@ -14,26 +14,34 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.ServiceReference;
+import org.osgi.service.packageadmin.ExportedPackage;
 import org.osgi.service.packageadmin.PackageAdmin;
 
+import bndtools.launcher.BundleRegistry.BundleRecord;
+
 class BundleInstaller implements Runnable {
 
 	private static final String FILE_URI_PREFIX = "file:";
@@ -45,17 +53,55 @@ class BundleInstaller implements Runnable {
     // hopefully avoids loading a file while it is still being written to disk.
     private static final long MINIMUM_FILE_AGE = 2000;
 
-	private final Logger log = Logger.getLogger("bndtools.launcher");
+    // The default time to wait between synchronizations in the main loop.
+    private static final long SYNC_INTERVAL = 2000;
+
+    // The maximum time to wait for a package refresh during rollback.
+    private static final long REFRESH_TIMEOUT = 30000;
+
+	private final Logger log;
 
 	private final File propsFile;
 	private final BundleContext framework;
 	private final Runnable errorCallback;
+	private final LauncherMetrics metrics = new LauncherMetrics();
+	private final BundleCosts costs;
+	private final StartWatchdog startWatchdog;
 
-	private final Map<String, Bundle> locationsMap = new HashMap<String, Bundle>();
-	private final Set<Long> startAttempted = new HashSet<Long>();
+	private final BundleRegistry registry = new BundleRegistry();
+	private final List<BundleRecord> removed = new ArrayList<BundleRecord>();
 	private long propsLastUpdated = 0L;
+	private int defaultStart = START;
+	// File system stat calls made in the current cycle
+	private int statCalls = 0;
+	private volatile long syncInterval = SYNC_INTERVAL;
+
+	// Set until the first synchronization if startup is traced
+	private StartupTrace startupTrace = null;
+	// Set until the first synchronization if started from a launch descriptor
+	private LaunchDescriptor descriptor = null;
+	// Set if failed starts are retried
+	private StartRetryScheduler retryScheduler = null;
+	// Set if bundles are installed through a shared bundle store
+	private SharedBundleStore sharedStore = null;
+	// Set if synchronization is transactional
+	private SyncTransaction batchTransaction = null;
+	// Non-null only while a transactional batch is being performed
+	private SyncTransaction transaction = null;
 
 	BundleInstaller(File propsFile, BundleContext framework, Runnable errorCallback) {
+		this(propsFile, framework, errorCallback, "bndtools.launcher");
+	}
+
+	/**
+	 * @param logName
+	 *            The logger name, which differs per framework when several
+	 *            frameworks are hosted.
+	 */
+	BundleInstaller(File propsFile, BundleContext framework, Runnable errorCallback, String logName) {
+		this.log = Logger.getLogger(logName);
+		this.costs = new BundleCosts(log);
+		this.startWatchdog = new StartWatchdog(metrics, costs, log);
 		this.propsFile = propsFile;
 		this.framework = framework;
         this.errorCallback = errorCallback;
@@ -70,10 +116,129 @@ class BundleInstaller implements Runnable {
 			// Skip the system bundle
 			String location = bundle.getLocation();
 			if(bundle.getBundleId() != 0 && location != null && location.startsWith(FILE_URI_PREFIX)) {
-				locationsMap.put(location, bundle);
+				registry.add(bundle, location, getBundleFile(location), START);
+			}
+		}
+		log.log(Level.INFO, "BundleInstaller detected {0} pre-installed bundles with \"file:\" locations.", registry.size());
+	}
+
+	/**
+	 * Sets the maximum time a bundle may take to start; see
+	 * {@link StartWatchdog#setTimeout(long, boolean)}.
+	 */
+	void setStartTimeout(long timeout, boolean continueOnTimeout) {
+		startWatchdog.setTimeout(timeout, continueOnTimeout);
+	}
+
+	/**
+	 * Records the bundle operations of the first synchronization, after which
+	 * the launch is ready, in a startup trace.
+	 */
+	synchronized void setStartupTrace(StartupTrace startupTrace) {
+		this.startupTrace = startupTrace;
+	}
+
+	/**
+	 * Takes the run bundles and their metadata for the first synchronization
+	 * from a precompiled launch descriptor, if it is still current.
+	 */
+	synchronized void setLaunchDescriptor(LaunchDescriptor descriptor) {
+		this.descriptor = descriptor;
+	}
+
+	/**
+	 * Retries failed bundle starts in the background with an exponential
+	 * backoff; see {@link StartRetryScheduler}.
+	 *
+	 * @param maxAttempts
+	 *            The maximum number of start attempts per bundle. Retrying is
+	 *            disabled if this is less than two.
+	 */
+	synchronized void setStartRetries(int maxAttempts, long baseDelay, long maxDelay) {
+		if(retryScheduler != null) {
+			retryScheduler.stop();
+			retryScheduler = null;
+		}
+		if(maxAttempts < 2)
+			return;
+		retryScheduler = new StartRetryScheduler(framework, new Runnable() {
+			public void run() {
+				retryStarts();
 			}
+		}, maxAttempts, baseDelay, maxDelay, log);
+		retryScheduler.start();
+	}
+
+	/**
+	 * Releases the resources held by the installer once its framework has
+	 * stopped.
+	 */
+	void close() {
+		StartRetryScheduler retryScheduler;
+		synchronized (this) {
+			retryScheduler = this.retryScheduler;
+			this.retryScheduler = null;
 		}
-		log.log(Level.INFO, "BundleInstaller detected {0} pre-installed bundles with \"file:\" locations.", locationsMap.size());
+		if(retryScheduler != null)
+			retryScheduler.stop();
+	}
+
+	/**
+	 * Makes each synchronization batch transactional: if any install, update
+	 * or start in a batch fails, the batch is rolled back to the last known
+	 * good bundle set instead of invoking the error callback. The first batch
+	 * has nothing to roll back to and is kept even if it fails.
+	 *
+	 * @param backupDir
+	 *            The directory in which last known good copies of the bundles
+	 *            are kept.
+	 */
+	synchronized void enableTransactions(File backupDir) {
+		batchTransaction = new SyncTransaction(backupDir, log);
+		log.log(Level.INFO, "Transactional bundle synchronization enabled, keeping last known good bundles in {0}.", backupDir);
+	}
+
+	/**
+	 * Installs and updates bundles through a content-addressed store shared
+	 * with other launcher instances on the host.
+	 */
+	synchronized void setSharedStore(SharedBundleStore sharedStore) {
+		this.sharedStore = sharedStore;
+	}
+
+	/**
+	 * Enables measuring the resources used while starting and updating each
+	 * bundle.
+	 */
+	void setCostTracking(boolean enabled) {
+		costs.setEnabled(enabled);
+	}
+
+	BundleCosts getCosts() {
+		return costs;
+	}
+
+	/**
+	 * Sets the time the main loop waits between synchronizations.
+	 */
+	void setSyncInterval(long syncInterval) {
+		this.syncInterval = syncInterval;
+	}
+
+	Logger getLogger() {
+		return log;
+	}
+
+	LauncherMetrics getMetrics() {
+		return metrics;
+	}
+
+	synchronized BundleRecord getRecord(String location) {
+		return registry.get(location);
+	}
+
+	synchronized StartRetryScheduler getRetryScheduler() {
+		return retryScheduler;
 	}
 
 	public void run() {
@@ -85,7 +250,7 @@ class BundleInstaller implements Runnable {
 				synchronizeBundles();
 
 				// Sleep until next cycle
-				Thread.sleep(2000);
+				Thread.sleep(syncInterval);
 			}
 		} catch (InterruptedException e) {
 			// Allow thread to end
@@ -94,97 +259,384 @@ class BundleInstaller implements Runnable {
 	}
 
 	void synchronizeBundles() {
+		synchronizeBundles(false);
+	}
+
+	/**
+	 * Synchronizes the installed bundles with the run bundles and the bundle
+	 * files on disk.
+	 *
+	 * @param force
+	 *            Whether to pick up changed files immediately, rather than
+	 *            waiting until they are at least {@link #MINIMUM_FILE_AGE}
+	 *            old.
+	 * @return The errors that occurred, which have already been reported.
+	 */
+	synchronized List<BundleOperationException> synchronizeBundles(boolean force) {
+		long cycleStart = System.nanoTime();
+		long allocatedStart = LauncherMetrics.currentThreadAllocatedBytes();
+		long minimumFileAge = force ? 0L : MINIMUM_FILE_AGE;
 		long propsFileLastModified = propsFile.lastModified();
+		statCalls = 1;
 		long propsFileAge = System.currentTimeMillis() - propsFileLastModified;
 
-		Map<String, Integer> toInstall = new HashMap<String, Integer>();
-		List<Bundle> toRemove = new LinkedList<Bundle>();
-		int defaultStart = START;
+		// Only allocated when the launch properties are (re)read
+		Map<String, Integer> toInstall = null;
+		List<BundleRecord> toRemove = null;
 
 		boolean neverUpdated = propsLastUpdated == 0L;
 		boolean propsfileChanged = propsFileLastModified > propsLastUpdated;
 		
 		// (Re)read bundle list if (a) we have never read it before or (b) it has changed
 		// since we last read it
-		if(neverUpdated || (propsfileChanged && propsFileAge >= MINIMUM_FILE_AGE)) {
+		if(neverUpdated || (propsfileChanged && propsFileAge >= minimumFileAge)) {
 		    log.fine("Launch properties file has changed");
 		    propsLastUpdated = propsFileLastModified;
+		    toInstall = new HashMap<String, Integer>();
+		    toRemove = new ArrayList<BundleRecord>();
 			defaultStart = loadBundles(toInstall);
 
-			// Find bundles to uninstall
-			for (Iterator<Entry<String, Bundle>> iterator = locationsMap.entrySet().iterator(); iterator.hasNext(); ) {
-				Entry<String, Bundle> entry = iterator.next();
-				if(!toInstall.containsKey(entry.getKey())) {
-					iterator.remove();
-					toRemove.add(entry.getValue());
-				}
+			// Find bundles to uninstall, and apply the start options of the
+			// bundles to keep. Remaining paths are the new ones.
+			for (int i = 0; i < registry.capacity(); i++) {
+				BundleRecord record = registry.slot(i);
+				if(record == null)
+					continue;
+				Integer startOption = toInstall.remove(record.location);
+				if(startOption == null)
+					toRemove.add(record);
+				else
+					record.startOption = startOption.intValue();
 			}
+		}
 
-			// Find bundles to install
-			for (Iterator<Entry<String, Integer>> iterator = toInstall.entrySet().iterator(); iterator.hasNext(); ) {
-				Entry<String, Integer> entry = iterator.next();
-				if(locationsMap.containsKey(entry.getKey())) {
-					iterator.remove(); // Remaining paths are the new ones
-				}
+		// Perform the changes
+		List<BundleOperationException> errors = new ArrayList<BundleOperationException>();
+		boolean rolledBack = false;
+		int changes;
+		transaction = batchTransaction;
+		try {
+			if(transaction != null)
+				transaction.begin();
+			changes = performAllChanges(toInstall, toRemove, minimumFileAge, errors);
+		} finally {
+			transaction = null;
+		}
+
+		// Commit or roll back a transactional batch. Until a batch has been
+		// committed there is no last known good set to roll back to, so a
+		// failed batch is kept as it is and becomes the starting point.
+		if(batchTransaction != null) {
+			if(errors.isEmpty() || !batchTransaction.hasCommitted())
+				batchTransaction.commit();
+			else if(batchTransaction.hasChanges())
+				rolledBack = rollback(batchTransaction, errors);
+		}
+
+		reportErrors(errors, rolledBack);
+
+		if(sharedStore != null) {
+			try {
+				sharedStore.flush();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Error writing shared bundle store references.", e);
 			}
 		}
 
-		// Perform the changes
+		// The descriptor only describes the launch as it started
+		descriptor = null;
+		if(startupTrace != null) {
+			startupTrace.finish(framework);
+			startupTrace = null;
+		}
+
+		long nanos = System.nanoTime() - cycleStart;
+		long allocated = allocatedStart < 0 ? -1 : LauncherMetrics.currentThreadAllocatedBytes() - allocatedStart;
+		metrics.syncCompleted(nanos, registry.size(), statCalls, changes, allocated);
+		if(log.isLoggable(Level.FINER))
+			log.log(Level.FINER, "Synchronized {0} bundles in {1} ms: {2} stat calls, {3} changes, {4} bytes allocated.",
+					new Object[] { registry.size(), nanos / 1000000, statCalls, changes, allocated });
+		return errors;
+	}
+
+	/**
+	 * Installs the bundle at the specified path, then resolves and starts it
+	 * immediately. The bundle is not added to the run bundles, so it will be
+	 * uninstalled the next time the launcher properties file changes unless
+	 * it is listed there.
+	 */
+	synchronized List<BundleOperationException> installBundle(String path) {
+		String location = FILE_URI_PREFIX + path;
+		List<BundleOperationException> errors = new LinkedList<BundleOperationException>();
+		if(registry.contains(location)) {
+			errors.add(new BundleOperationException(location, "Bundle is already installed.", null));
+			return errors;
+		}
+
+		performInstalls(Collections.singletonMap(location, defaultStart), errors);
+		resolveAndStart(errors);
+		reportErrors(errors, false);
+		return errors;
+	}
+
+	/**
+	 * Updates the bundle at the specified path from its bundle file
+	 * immediately, then resolves and starts it.
+	 */
+	synchronized List<BundleOperationException> updateBundle(String path) {
+		String location = FILE_URI_PREFIX + path;
 		List<BundleOperationException> errors = new LinkedList<BundleOperationException>();
-		performAllChanges(toInstall, toRemove, defaultStart, errors);
+		BundleRecord record = registry.get(location);
+		if(record == null) {
+			errors.add(new BundleOperationException(location, "Bundle is not installed.", null));
+			return errors;
+		}
+
+		performUpdate(record, errors);
+		resolveAndStart(errors);
+		reportErrors(errors, false);
+		return errors;
+	}
+
+	/**
+	 * Uninstalls the bundle at the specified path immediately.
+	 */
+	synchronized List<BundleOperationException> uninstallBundle(String path) {
+		String location = FILE_URI_PREFIX + path;
+		List<BundleOperationException> errors = new LinkedList<BundleOperationException>();
+		BundleRecord record = registry.get(location);
+		if(record == null) {
+			errors.add(new BundleOperationException(location, "Bundle is not installed.", null));
+			return errors;
+		}
+
+		performUninstalls(Collections.singletonList(record), errors);
+		reportErrors(errors, false);
+		return errors;
+	}
+
+	/**
+	 * Opens the content to install or update a bundle from, through the
+	 * shared bundle store if there is one.
+	 */
+	private InputStream openBundle(String location, File file) throws FileNotFoundException {
+		if(sharedStore != null && isFile(file)) {
+			LaunchDescriptor.BundleEntry entry = descriptor != null ? descriptor.getEntry(location) : null;
+			String digest = entry != null && matches(entry, file) ? entry.digest : null;
+			try {
+				// The store checks whether it already has the content
+				statCalls++;
+				return sharedStore.open(location, file, digest);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Unable to use the shared bundle store for " + location + ", installing directly.", e);
+			}
+		}
+		return new FileInputStream(file);
+	}
+
+	private boolean isFile(File file) {
+		statCalls++;
+		return file.isFile();
+	}
+
+	private boolean matches(LaunchDescriptor.BundleEntry entry, File file) {
+		statCalls += LaunchDescriptor.BundleEntry.MATCH_STAT_CALLS;
+		return entry.matches(file);
+	}
+
+	/**
+	 * Returns one line per managed bundle, giving its id, state and location.
+	 */
+	synchronized List<String> getStatus() {
+		List<String> status = new ArrayList<String>(registry.size());
+		for (int i = 0; i < registry.capacity(); i++) {
+			BundleRecord record = registry.slot(i);
+			if(record != null)
+				status.add(String.format("%d %s %s", record.id, getStateName(record.bundle.getState()), record.location));
+		}
+		return status;
+	}
 
-		// Report errors
+	private void resolveAndStart(Collection<? super BundleOperationException> errors) {
+		resolveBundles();
+		performStarts(errors);
+	}
+
+	/**
+	 * Rolls back a failed batch and starts the bundles again.
+	 *
+	 * @return Whether the rollback succeeded.
+	 */
+	private boolean rollback(SyncTransaction failed, Collection<BundleOperationException> errors) {
+		log.log(Level.WARNING, "Bundle synchronization failed with {0} error(s), rolling back to the last known good bundle set.", errors.size());
+		long start = System.nanoTime();
+
+		List<BundleOperationException> rollbackErrors = new LinkedList<BundleOperationException>();
+		List<Bundle> toRefresh = failed.rollback(framework, registry, sharedStore, rollbackErrors);
+		refreshBundles(toRefresh.toArray(new Bundle[toRefresh.size()]));
+
+		// Start the restored bundles, and any others that failed to start in the batch
+		for (BundleRecord record : failed.getStartsAttempted())
+			record.startAttempted = false;
+		resolveBundles();
+		performStarts(rollbackErrors);
+
+		long nanos = System.nanoTime() - start;
+		metrics.rolledBack(nanos);
+		if(!rollbackErrors.isEmpty()) {
+			log.log(Level.SEVERE, "Rollback failed with {0} error(s) after {1,number,0.0}ms.", new Object[] { rollbackErrors.size(), nanos / 1e6 });
+			errors.addAll(rollbackErrors);
+			return false;
+		}
+		log.log(Level.WARNING, "Rolled back {0} bundle change(s) to the last known good bundle set in {1,number,0.0}ms.", new Object[] { toRefresh.size(), nanos / 1e6 });
+		return true;
+	}
+
+	/**
+	 * Refreshes the specified bundles and waits for the refresh to complete.
+	 * Other parties may refresh packages at the same time, so a
+	 * {@link FrameworkEvent#PACKAGES_REFRESHED} event is only taken as the end
+	 * of this refresh if it arrives after the refresh was requested and none
+	 * of the bundles that are still installed exports a package that is
+	 * pending removal.
+	 */
+	void refreshBundles(final Bundle[] bundles) {
+		if(bundles.length == 0)
+			return;
+		ServiceReference pkgAdmRef = framework.getServiceReference(PackageAdmin.class.getName());
+		if(pkgAdmRef == null)
+			return;
+		final PackageAdmin pkgAdm = (PackageAdmin) framework.getService(pkgAdmRef);
+		if(pkgAdm == null)
+			return;
+
+		final AtomicBoolean requested = new AtomicBoolean(false);
+		final CountDownLatch refreshed = new CountDownLatch(1);
+		FrameworkListener listener = new FrameworkListener() {
+			public void frameworkEvent(FrameworkEvent event) {
+				if(event.getType() == FrameworkEvent.PACKAGES_REFRESHED && requested.get() && !isRemovalPending(pkgAdm, bundles))
+					refreshed.countDown();
+			}
+		};
+		framework.addFrameworkListener(listener);
+		try {
+			requested.set(true);
+			pkgAdm.refreshPackages(bundles);
+			if(!refreshed.await(REFRESH_TIMEOUT, TimeUnit.MILLISECONDS))
+				log.log(Level.WARNING, "Package refresh did not complete within {0}ms.", REFRESH_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			framework.removeFrameworkListener(listener);
+			framework.ungetService(pkgAdmRef);
+		}
+	}
+
+	/**
+	 * Returns whether any of the bundles that are still installed exports a
+	 * package that will be removed by a refresh.
+	 */
+	static boolean isRemovalPending(PackageAdmin pkgAdm, Bundle[] bundles) {
+		for (Bundle bundle : bundles) {
+			if(bundle.getState() == Bundle.UNINSTALLED)
+				continue;
+			ExportedPackage[] exports = pkgAdm.getExportedPackages(bundle);
+			if(exports == null)
+				continue;
+			for (ExportedPackage export : exports) {
+				if(export.isRemovalPending())
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Logs errors and invokes the error callback, unless the errors were
+	 * recovered by rolling back or are all failed starts that will be retried.
+	 * In the latter case the callback is invoked if a bundle runs out of
+	 * retries.
+	 */
+	private void reportErrors(Collection<BundleOperationException> errors, boolean recovered) {
 		if(!errors.isEmpty()) {
 			log.log(Level.SEVERE, "{0} ERROR(S) OCCURRED", errors.size());
 			int i = 0;
+			boolean retrying = true;
 			for (BundleOperationException error : errors) {
 				String message = MessageFormat.format("{0} BUNDLE {1}: {2}", i++, error.getBundleLocation(), error.getMessage());
 				log.log(Level.SEVERE, message, error.getCause());
+				retrying &= isRetryPending(error.getBundleLocation());
 			}
 
-			if(errorCallback != null)
+			if(errorCallback != null && !recovered && !retrying)
 			    errorCallback.run();
 		}
 	}
 
+	private boolean isRetryPending(String location) {
+		if(retryScheduler == null)
+			return false;
+		BundleRecord record = registry.get(location);
+		return record != null && retryScheduler.isPending(record);
+	}
+
 	int loadBundles(Map<String, Integer> toInstall) {
+		if(descriptor != null && descriptor.isCurrent(propsFile))
+			return descriptor.getRunBundles(toInstall);
+
 	    int defaultStart = START;
 		try {
 			Properties props = new Properties();
 			props.load(new FileInputStream(propsFile));
+			defaultStart = parseRunBundles(props, toInstall);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Error reading launcher properties file {0}.", propsFile.getAbsolutePath());
+		}
+		return defaultStart;
+	}
 
-			// Read the default start option
-            defaultStart = readStartOptionString(props.getProperty(LauncherConstants.PROP_DEFAULT_START_OPTIONS), START);
-
-			// Add the run bundles
-			String bundlesStr = props.getProperty(LauncherConstants.PROP_RUN_BUNDLES);
-			if(bundlesStr != null) {
-				String[] bundles = bundlesStr.split(",");
-				for (String bundleSpec : bundles) {
-					String trimmedSpec = bundleSpec.trim();
-					if(trimmedSpec.length() > 0) {
-					    String[] options = trimmedSpec.split(";");
-					    String bundlePath = options[0];
-						String location = FILE_URI_PREFIX + bundlePath;
-
-						int startOption = defaultStart;
-						for(int i = 1; i < options.length; i++) {
-						    if(options[i].startsWith("start=")) {
-						        startOption = readStartOptionString(options[i].substring("start=".length()), defaultStart);
-						    }
-						}
-
-						toInstall.put(location, startOption);
+	/**
+	 * Reads the run bundles from the launcher properties into a map of
+	 * bundle location to start option.
+	 *
+	 * @return The default start option.
+	 */
+	static int parseRunBundles(Properties props, Map<String, Integer> toInstall) {
+		// Read the default start option
+		int defaultStart = readStartOptionString(props.getProperty(LauncherConstants.PROP_DEFAULT_START_OPTIONS), START);
+
+		// Add the run bundles
+		String bundlesStr = props.getProperty(LauncherConstants.PROP_RUN_BUNDLES);
+		if(bundlesStr != null) {
+			String[] bundles = bundlesStr.split(",");
+			for (String bundleSpec : bundles) {
+				String trimmedSpec = bundleSpec.trim();
+				if(trimmedSpec.length() > 0) {
+				    String[] options = trimmedSpec.split(";");
+				    String bundlePath = options[0];
+					String location = FILE_URI_PREFIX + bundlePath;
+
+					int startOption = defaultStart;
+					for(int i = 1; i < options.length; i++) {
+					    if(options[i].startsWith("start=")) {
+					        startOption = readStartOptionString(options[i].substring("start=".length()), defaultStart);
+					    }
 					}
+
+					toInstall.put(location, startOption);
 				}
 			}
-		} catch (IOException e) {
-			log.log(Level.WARNING, "Error reading launcher properties file {0}.", propsFile.getAbsolutePath());
 		}
 		return defaultStart;
 	}
 
-	int readStartOptionString(String option, int defaultValue) {
+	static File getBundleFile(String location) {
+		if(location.startsWith(FILE_URI_PREFIX))
+			return new File(location.substring(FILE_URI_PREFIX.length()));
+		return new File(location);
+	}
+
+	static int readStartOptionString(String option, int defaultValue) {
 	    if(LauncherConstants.VALUE_NOSTART.equals(option))
 	        return NO_START;
         if(LauncherConstants.VALUE_START.equals(option))
@@ -199,7 +651,7 @@ class BundleInstaller implements Runnable {
         return defaultValue;
 	}
 
-	private static class BundleOperationException extends Exception {
+	static class BundleOperationException extends Exception {
 		private static final long serialVersionUID = 1L;
 		final String bundleLocation;
 
@@ -212,149 +664,355 @@ class BundleInstaller implements Runnable {
 		}
 	}
 
-	void performAllChanges(Map<String, Integer> toInstall, Collection<? extends Bundle> toRemove, int defaultStart, Collection<? super BundleOperationException> errors) {
+	static String getStateName(int state) {
+		switch (state) {
+		case Bundle.UNINSTALLED:
+			return "UNINSTALLED";
+		case Bundle.INSTALLED:
+			return "INSTALLED";
+		case Bundle.RESOLVED:
+			return "RESOLVED";
+		case Bundle.STARTING:
+			return "STARTING";
+		case Bundle.STOPPING:
+			return "STOPPING";
+		case Bundle.ACTIVE:
+			return "ACTIVE";
+		default:
+			return "UNKNOWN";
+		}
+	}
+
+	/**
+	 * @return The number of bundles installed, updated or uninstalled.
+	 */
+	int performAllChanges(Map<String, Integer> toInstall, Collection<BundleRecord> toRemove, long minimumFileAge, Collection<? super BundleOperationException> errors) {
 		assert errors != null : "errors must not be null";
+		int changes = 0;
 
 		// Uninstall
 		if(toRemove != null)
-			performUninstalls(toRemove, errors);
+			changes += performUninstalls(toRemove, errors);
 
 		// Updates
-		performUpdates(errors);
+		changes += performUpdates(minimumFileAge, errors);
 
 		// Install
 		if(toInstall != null) {
-			performInstalls(toInstall.keySet(), errors);
+			changes += performInstalls(toInstall, errors).size();
+		}
+
+		// Resolve bundles, unless nothing has changed and there is nothing to start
+		if(changes > 0 || hasPendingStarts())
+			resolveBundles();
+
+		// Start
+		performStarts(errors);
+		return changes;
+	}
+
+	/**
+	 * Returns whether any managed bundle is waiting for a start attempt.
+	 */
+	private boolean hasPendingStarts() {
+		for (int i = 0; i < registry.capacity(); i++) {
+			BundleRecord record = registry.slot(i);
+			if(record != null && !record.startAttempted && record.startOption != NO_START && !record.isFragment())
+				return true;
 		}
+		return false;
+	}
 
-		// Resolve bundles
+	void resolveBundles() {
 		ServiceReference pkgAdmRef = framework.getServiceReference(PackageAdmin.class.getName());
 		if(pkgAdmRef != null) {
 			PackageAdmin pkgAdm = (PackageAdmin) framework.getService(pkgAdmRef);
 			if(pkgAdm != null) {
+				Object event = LauncherEvents.BUNDLE_RESOLVE.begin(log);
+				long resolveStart = System.nanoTime();
+				boolean resolved = false;
 				try {
-					pkgAdm.resolveBundles(null);
+					resolved = pkgAdm.resolveBundles(null);
 				} finally {
+					if(startupTrace != null)
+						startupTrace.record(StartupTrace.PHASE_RESOLVE, null, -1, resolveStart, System.nanoTime());
 					framework.ungetService(pkgAdmRef);
+					LauncherEvents.BUNDLE_RESOLVE.commit(event, null, -1, resolved ? LauncherEvents.OUTCOME_SUCCESS : LauncherEvents.OUTCOME_FAILURE, log);
 				}
 			}
 		}
-
-		// Start
-		performStarts(defaultStart, toInstall, errors);
 	}
 
-	void performUninstalls(Collection<? extends Bundle> toRemove, Collection<? super BundleOperationException> errors) {
+	/**
+	 * @return The number of bundles uninstalled.
+	 */
+	int performUninstalls(Collection<BundleRecord> toRemove, Collection<? super BundleOperationException> errors) {
 		assert toRemove != null : "toRemove must not be null";
 		assert errors != null : "errors must not be null";
-		for (Bundle bundle : toRemove) {
+		int uninstalled = 0;
+		for (BundleRecord record : toRemove) {
+			registry.remove(record);
+			Bundle bundle = record.bundle;
+			Object event = LauncherEvents.BUNDLE_UNINSTALL.begin(log);
+			String outcome = LauncherEvents.OUTCOME_FAILURE;
 			try {
 				if(bundle.getState() != Bundle.UNINSTALLED) {
-					log.log(Level.FINE, "Uninstalling bundle {0}", bundle.getLocation());
-					startAttempted.remove(bundle.getBundleId());
+					log.log(Level.FINE, "Uninstalling bundle {0}", record.location);
+					if(transaction != null)
+						transaction.uninstalling(record);
 					bundle.uninstall();
+					if(retryScheduler != null)
+						retryScheduler.forget(record);
+					if(sharedStore != null)
+						sharedStore.release(record.location);
+					uninstalled++;
+					outcome = LauncherEvents.OUTCOME_SUCCESS;
+					if(transaction != null)
+						transaction.uninstalled(record);
 				} else {
-					errors.add(new BundleOperationException(bundle.getLocation(), "Bundle is already uninstalled", null));
+					errors.add(new BundleOperationException(record.location, "Bundle is already uninstalled", null));
 				}
 			} catch (BundleException e) {
-				errors.add(new BundleOperationException(bundle.getLocation(), "Error uninstalling bundle", e));
+				errors.add(new BundleOperationException(record.location, "Error uninstalling bundle", e));
+			} finally {
+				LauncherEvents.BUNDLE_UNINSTALL.commit(event, record.location, record.id, outcome, log);
 			}
 		}
+		return uninstalled;
 	}
 
-	void performUpdates(Collection<? super BundleOperationException> errors) {
-		for(Iterator<Entry<String, Bundle>> iterator = locationsMap.entrySet().iterator(); iterator.hasNext(); ) {
-			Entry<String, Bundle> entry = iterator.next();
-
-			String location = entry.getKey();
-			Bundle bundle = entry.getValue();
-
-			File bundleFile;
-			if(location.startsWith(FILE_URI_PREFIX)) {
-				bundleFile = new File(location.substring(FILE_URI_PREFIX.length()));
-			} else {
-				bundleFile = new File(location);
-			}
+	/**
+	 * Updates the bundles whose files have changed and uninstalls those whose
+	 * files have been deleted.
+	 *
+	 * @return The number of bundles updated or uninstalled.
+	 */
+	int performUpdates(long minimumFileAge, Collection<? super BundleOperationException> errors) {
+		int changes = 0;
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < registry.capacity(); i++) {
+			BundleRecord record = registry.slot(i);
+			if(record == null)
+				continue;
 
-			if(!bundleFile.isFile() && !bundleFile.isDirectory()) {
+			// lastModified() returns zero if the file does not exist, so one
+			// call both checks for deletion and detects changes
+			long fileLastModified = record.file.lastModified();
+			statCalls++;
+			if(fileLastModified == 0L) {
 				// Bundle file has been deleted => uninstall it
+				Object event = LauncherEvents.BUNDLE_UNINSTALL.begin(log);
+				String outcome = LauncherEvents.OUTCOME_FAILURE;
 				try {
-					log.log(Level.FINE, "Uninstalling bundle {0}.", bundle.getLocation());
-					startAttempted.remove(bundle.getBundleId());
-					bundle.uninstall();
+					log.log(Level.FINE, "Uninstalling bundle {0}.", record.location);
+					record.bundle.uninstall();
+					if(retryScheduler != null)
+						retryScheduler.forget(record);
+					if(sharedStore != null)
+						sharedStore.release(record.location);
+					removed.add(record);
+					changes++;
+					outcome = LauncherEvents.OUTCOME_SUCCESS;
+					if(transaction != null)
+						transaction.deleted(record);
 				} catch (BundleException e) {
-					errors.add(new BundleOperationException(bundle.getLocation(), "Error uninstalling bundle.", e));
+					errors.add(new BundleOperationException(record.location, "Error uninstalling bundle.", e));
+				} finally {
+					LauncherEvents.BUNDLE_UNINSTALL.commit(event, record.location, record.id, outcome, log);
 				}
 			} else {
-				long fileLastModified = bundleFile.lastModified();
-				long fileAge = System.currentTimeMillis() - fileLastModified;
-                boolean bundleFileNewerThanBundle = bundle.getLastModified() < fileLastModified;
-				if(bundleFileNewerThanBundle && fileAge >= MINIMUM_FILE_AGE) {
-					try {
-						log.log(Level.FINE, "Updating bundle {0}.", bundle.getLocation());
-						startAttempted.remove(bundle.getBundleId());
-						bundle.update(new FileInputStream(bundleFile));
-					} catch (FileNotFoundException e) {
-						errors.add(new BundleOperationException(bundle.getLocation(), "Error updating bundle, its bundle file may have been deleted.", e));
-					} catch (BundleException e) {
-						errors.add(new BundleOperationException(bundle.getLocation(), "Error updating bundle.", e));
-					}
-				}
+				long fileAge = now - fileLastModified;
+                boolean bundleFileNewerThanBundle = record.lastModified < fileLastModified;
+				if(bundleFileNewerThanBundle && fileAge >= minimumFileAge && performUpdate(record, errors))
+					changes++;
 			}
 		}
+
+		// Forget bundles uninstalled above, outside of the loop over the registry
+		for (BundleRecord record : removed)
+			registry.remove(record);
+		removed.clear();
+		return changes;
 	}
 
-	Collection<Bundle> performInstalls(Collection<? extends String> toInstall, Collection<? super BundleOperationException> errors) {
+	/**
+	 * Updates a bundle from its bundle file, both for synchronization and for
+	 * the control channel.
+	 *
+	 * @return Whether the update succeeded.
+	 */
+	private boolean performUpdate(BundleRecord record, Collection<? super BundleOperationException> errors) {
+		Object event = LauncherEvents.BUNDLE_UPDATE.begin(log);
+		String outcome = LauncherEvents.OUTCOME_FAILURE;
+		try {
+			log.log(Level.FINE, "Updating bundle {0}.", record.location);
+			if(transaction != null)
+				transaction.updating(record);
+			InputStream stream = openBundle(record.location, record.file);
+			BundleCosts.Probe probe = costs.begin();
+			try {
+				record.bundle.update(stream);
+			} finally {
+				costs.end(probe, record.bundle, BundleCosts.OPERATION_UPDATE);
+			}
+			outcome = LauncherEvents.OUTCOME_SUCCESS;
+			return true;
+		} catch (FileNotFoundException e) {
+			errors.add(new BundleOperationException(record.location, "Error updating bundle, its bundle file may have been deleted.", e));
+		} catch (BundleException e) {
+			errors.add(new BundleOperationException(record.location, "Error updating bundle.", e));
+		} finally {
+			// Even a failed update may have changed the bundle, and the
+			// regular synchronization will start it again
+			record.updated();
+			if(retryScheduler != null)
+				retryScheduler.forget(record);
+			LauncherEvents.BUNDLE_UPDATE.commit(event, record.location, record.id, outcome, log);
+		}
+		return false;
+	}
+
+	/**
+	 * @param toInstall
+	 *            Map of bundle location to start option.
+	 */
+	Collection<Bundle> performInstalls(Map<String, Integer> toInstall, Collection<? super BundleOperationException> errors) {
 		assert toInstall != null : "toInstall must not be null";
 		assert errors != null : "errors must not be null";
 
 		Collection<Bundle> installed = new LinkedList<Bundle>();
-		for (String location : toInstall) {
+		for (Entry<String, Integer> entry : toInstall.entrySet()) {
+			String location = entry.getKey();
 			Bundle bundle = null;
 
 			// Install it
+			Object event = LauncherEvents.BUNDLE_INSTALL.begin(log);
+			long installStart = System.nanoTime();
 			try {
 				log.log(Level.FINE, "Installing bundle {0}", location);
-				bundle = framework.installBundle(location);
-				startAttempted.remove(bundle.getBundleId());
-
-				locationsMap.put(location, bundle);
+				File file = getBundleFile(location);
+				if(sharedStore != null)
+					bundle = framework.installBundle(location, openBundle(location, file));
+				else
+					bundle = framework.installBundle(location);
+
+				BundleRecord record = registry.add(bundle, location, file, entry.getValue().intValue());
+				LaunchDescriptor.BundleEntry descriptorEntry = descriptor != null ? descriptor.getEntry(location) : null;
+				if(descriptorEntry != null && matches(descriptorEntry, file))
+					record.knownFragment(descriptorEntry.fragment);
 				installed.add(bundle);
+				if(transaction != null)
+					transaction.installed(record);
+			} catch (FileNotFoundException e) {
+				errors.add(new BundleOperationException(location, "Error installing bundle, its bundle file may have been deleted.", e));
 			} catch (BundleException e) {
 				errors.add(new BundleOperationException(location, "Error installing bundle.", e));
+			} finally {
+				if(startupTrace != null)
+					startupTrace.record(StartupTrace.PHASE_INSTALL, location, bundle != null ? bundle.getBundleId() : -1, installStart, System.nanoTime());
+				LauncherEvents.BUNDLE_INSTALL.commit(event, location, bundle != null ? bundle.getBundleId() : -1,
+						bundle != null ? LauncherEvents.OUTCOME_SUCCESS : LauncherEvents.OUTCOME_FAILURE, log);
 			}
 		}
 
 		return installed;
 	}
 
-	void performStarts(int defaultStart, Map<String, Integer> startOptions, Collection<? super BundleOperationException> errors) {
+	void performStarts(Collection<? super BundleOperationException> errors) {
 		assert errors != null : "errors must not be null";
-		for (Bundle bundle : locationsMap.values()) {
-			// Don't keep trying to start a bundle that have already attempted to start
-			if(startAttempted.contains(bundle.getBundleId()))
-				continue;
-
-			// Skip fragments
-			if(bundle.getHeaders().get(org.osgi.framework.Constants.FRAGMENT_HOST) != null)
-				continue;
+		try {
+			for (int i = 0; i < registry.capacity(); i++) {
+				BundleRecord record = registry.slot(i);
+				if(record == null)
+					continue;
+
+				// Don't keep trying to start a bundle that have already attempted to start
+				if(record.startAttempted || record.startOption == NO_START)
+					continue;
+
+				// Skip fragments
+				if(record.isFragment())
+					continue;
+
+				record.startAttempted = true;
+				if(transaction != null)
+					transaction.startAttempted(record);
+				startBundle(record, errors);
+			}
+		} finally {
+			startWatchdog.release();
+			costs.logSummary();
+		}
+	}
 
+	/**
+	 * Starts a bundle, scheduling a retry if it fails and retrying is enabled.
+	 *
+	 * @return Whether the bundle was started.
+	 */
+	private boolean startBundle(BundleRecord record, Collection<? super BundleOperationException> errors) {
+		try {
+			log.log(Level.FINE, "Starting bundle {0}", record.location);
+			Object event = LauncherEvents.BUNDLE_START.begin(log);
+			String outcome = LauncherEvents.OUTCOME_FAILURE;
+			long start = System.nanoTime();
 			try {
-			    Integer startOptionObj = startOptions.get(bundle.getLocation());
-			    int startOption = startOptionObj != null
-			        ? startOptionObj.intValue()
-			        : defaultStart;
-
-			    if(startOption != -1) {
-			        log.log(Level.FINE, "Starting bundle {0}", bundle.getLocation());
-			        startAttempted.add(bundle.getBundleId());
-			        bundle.start(startOption);
-			    }
-			} catch (BundleException e) {
-				errors.add(new BundleOperationException(bundle.getLocation(), "Error starting bundle.", e));
-			} catch (IllegalStateException e) {
-			    errors.add(new BundleOperationException(bundle.getLocation(), "Error starting bundle", e));
+				startWatchdog.start(record.bundle, record.startOption);
+				outcome = LauncherEvents.OUTCOME_SUCCESS;
+			} finally {
+				if(startupTrace != null)
+					startupTrace.record(StartupTrace.PHASE_START, record.location, record.id, start, System.nanoTime());
+				LauncherEvents.BUNDLE_START.commit(event, record.location, record.id, outcome, log);
 			}
+			if(retryScheduler != null)
+				retryScheduler.forget(record);
+			return true;
+		} catch (BundleException e) {
+			errors.add(new BundleOperationException(record.location, "Error starting bundle.", e));
+		} catch (IllegalStateException e) {
+			errors.add(new BundleOperationException(record.location, "Error starting bundle", e));
+		}
+		if(retryScheduler != null)
+			retryScheduler.failed(record);
+		return false;
+	}
+
+	/**
+	 * Retries the failed starts that are due. Called on the retry scheduler's
+	 * thread; failures are logged rather than reported as errors, as they
+	 * already were when the bundle first failed to start. The error callback
+	 * is invoked if a bundle has run out of retries.
+	 */
+	synchronized void retryStarts() {
+		if(retryScheduler == null)
+			return;
+		List<BundleRecord> due = retryScheduler.takeDue();
+		if(due.isEmpty())
+			return;
+
+		List<BundleOperationException> errors = new ArrayList<BundleOperationException>();
+		boolean gaveUp = false;
+		try {
+			for (BundleRecord record : due) {
+				// Bundles updated or uninstalled since are left to the regular synchronization
+				if(registry.get(record.id) != record || !record.startAttempted || record.startOption == NO_START
+						|| record.bundle.getState() == Bundle.UNINSTALLED) {
+					retryScheduler.forget(record);
+					continue;
+				}
+				if(startBundle(record, errors))
+					log.log(Level.INFO, "Bundle {0} started on retry.", record.location);
+				else if(!retryScheduler.isPending(record))
+					gaveUp = true;
+			}
+		} finally {
+			startWatchdog.release();
+			costs.logSummary();
+		}
+		for (BundleOperationException error : errors) {
+			log.log(Level.WARNING, "Retry failed: " + error.getMessage() + " " + error.getBundleLocation(), error.getCause());
 		}
+		if(gaveUp && errorCallback != null)
+			errorCallback.run();
 	}
 }
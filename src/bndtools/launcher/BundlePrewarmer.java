@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the run bundle JARs in parallel so that they are in the OS page cache
+ * before the framework installs and starts them. Reading starts before the
+ * framework is started, so the two overlap. The total number of bytes read is
+ * capped to avoid evicting more useful pages from the cache. Each thread drains
+ * a shared queue of files through a single small buffer of its own.
+ * <p>
+ * Once the framework has started, the files not yet taken from the queue are
+ * dropped, as the installer is about to read them itself, and the files being
+ * read are waited for up to {@link #AWAIT_TIMEOUT}.
+ */
+class BundlePrewarmer {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// Maximum time to wait for the files being read, in milliseconds
+	static final long AWAIT_TIMEOUT = 2000;
+
+	private final Logger log = Logger.getLogger("bndtools.launcher");
+
+	private final int threads;
+	private final long maxBytes;
+
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicInteger filesRead = new AtomicInteger();
+	private final AtomicLong finishNanos = new AtomicLong();
+	private final Queue<File> files = new ConcurrentLinkedQueue<File>();
+	private long startNanos;
+	private ExecutorService executor;
+
+	BundlePrewarmer(int threads, long maxBytes) {
+		this.threads = threads;
+		this.maxBytes = maxBytes;
+	}
+
+	int getFilesRead() {
+		return filesRead.get();
+	}
+
+	long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * Starts reading the run bundles listed in the launcher properties in the
+	 * background.
+	 */
+	void start(Properties props) {
+		Map<String, Integer> runBundles = new HashMap<String, Integer>();
+		BundleInstaller.parseRunBundles(props, runBundles);
+		for (String location : runBundles.keySet())
+			files.add(BundleInstaller.getBundleFile(location));
+		int workers = Math.max(1, Math.min(threads, files.size()));
+
+		startNanos = System.nanoTime();
+		executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Bundle Prewarmer " + (++count));
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		for (int i = 0; i < workers; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					File file;
+					while((file = files.poll()) != null)
+						prewarm(file, buffer);
+				}
+			});
+		}
+		executor.shutdown();
+		log.log(Level.FINE, "Prewarming {0} bundles with {1} threads.", new Object[] { runBundles.size(), workers });
+	}
+
+	/**
+	 * Drops the files not yet being read, waits for the rest up to
+	 * {@link #AWAIT_TIMEOUT} and logs a report.
+	 *
+	 * @param overlapStart
+	 *            The {@link System#nanoTime()} at which the work that
+	 *            prewarming overlaps, i.e. the framework start, began.
+	 * @param overlapEnd
+	 *            The time at which that work ended.
+	 */
+	void awaitCompletion(long overlapStart, long overlapEnd) {
+		long waitStart = System.nanoTime();
+		int dropped = 0;
+		while(files.poll() != null)
+			dropped++;
+		try {
+			if(!executor.awaitTermination(AWAIT_TIMEOUT, TimeUnit.MILLISECONDS))
+				log.log(Level.FINE, "Prewarming still running after {0}ms, no longer waiting for it.", AWAIT_TIMEOUT);
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		long end = finishNanos.get() != 0L ? finishNanos.get() : System.nanoTime();
+		long overlap = Math.max(0L, Math.min(end, overlapEnd) - Math.max(startNanos, overlapStart));
+
+		log.log(Level.INFO, "Prewarmed {0} bundle file(s), {1} bytes in {2,number,0.0}ms; {3,number,0.0}ms overlapped framework start, waited {4,number,0.0}ms.",
+				new Object[] { filesRead.get(), bytesRead.get(), (end - startNanos) / 1e6, overlap / 1e6, (System.nanoTime() - waitStart) / 1e6 });
+		if(bytesRead.get() >= maxBytes)
+			log.log(Level.INFO, "Prewarming stopped at the limit of {0} bytes.", maxBytes);
+		if(dropped > 0)
+			log.log(Level.INFO, "Prewarming skipped {0} bundle file(s) not read before the framework started.", dropped);
+	}
+
+	private void prewarm(File file, byte[] buffer) {
+		if(!file.isFile() || bytesRead.get() >= maxBytes)
+			return;
+
+		try {
+			InputStream input = new FileInputStream(file);
+			try {
+				int read;
+				while(bytesRead.get() < maxBytes && (read = input.read(buffer)) != -1) {
+					bytesRead.addAndGet(read);
+				}
+			} finally {
+				input.close();
+			}
+			filesRead.incrementAndGet();
+		} catch (IOException e) {
+			log.log(Level.FINE, "Error prewarming bundle file " + file, e);
+		} finally {
+			finishNanos.set(System.nanoTime());
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+/**
+ * The bundles managed by a {@link BundleInstaller}, keyed by bundle id in an
+ * open-addressing table with primitive keys, with a secondary index by
+ * location.
+ * <p>
+ * Records are iterated by slot, without allocating an iterator:
+ *
+ * <pre>
+ * for (int i = 0; i &lt; registry.capacity(); i++) {
+ *     BundleRecord record = registry.slot(i);
+ *     if(record == null) continue;
+ *     ...
+ * }
+ * </pre>
+ *
+ * Records must not be added or removed during such a loop.
+ */
+class BundleRegistry {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final byte UNKNOWN = 0;
+	private static final byte YES = 1;
+	private static final byte NO = 2;
+
+	/**
+	 * The launcher's view of a managed bundle. Manifest metadata is read once
+	 * and cached until the bundle is next installed or updated.
+	 * <p>
+	 * The record keeps the bundle's last modified time rather than a digest of
+	 * its content. Every synchronization compares it with the bundle file's
+	 * time, which costs one stat call, whereas checking a digest would mean
+	 * reading every bundle file on every cycle. A digest is only needed when
+	 * content goes into the shared bundle store, and then it is taken from the
+	 * launch descriptor if the descriptor's entry still matches the file.
+	 */
+	static final class BundleRecord {
+		final Bundle bundle;
+		final long id;
+		final String location;
+		final File file;
+
+		int startOption;
+		boolean startAttempted = false;
+		// The bundle's last modified time when it was last installed or updated
+		long lastModified;
+
+		private byte fragment = UNKNOWN;
+
+		BundleRecord(Bundle bundle, String location, File file, int startOption) {
+			this.bundle = bundle;
+			this.id = bundle.getBundleId();
+			this.location = location;
+			this.file = file;
+			this.startOption = startOption;
+			this.lastModified = bundle.getLastModified();
+		}
+
+		boolean isFragment() {
+			if(fragment == UNKNOWN)
+				fragment = bundle.getHeaders().get(Constants.FRAGMENT_HOST) != null ? YES : NO;
+			return fragment == YES;
+		}
+
+		/**
+		 * Sets whether the bundle is a fragment when this is already known, so
+		 * that its headers need not be read.
+		 */
+		void knownFragment(boolean isFragment) {
+			fragment = isFragment ? YES : NO;
+		}
+
+		/**
+		 * Discards the cached metadata after the bundle has been updated.
+		 */
+		void updated() {
+			fragment = UNKNOWN;
+			startAttempted = false;
+			lastModified = bundle.getLastModified();
+		}
+	}
+
+	private final Map<String, BundleRecord> byLocation = new HashMap<String, BundleRecord>();
+
+	private long[] ids = new long[INITIAL_CAPACITY];
+	private BundleRecord[] records = new BundleRecord[INITIAL_CAPACITY];
+	private int size = 0;
+
+	BundleRecord add(Bundle bundle, String location, File file, int startOption) {
+		BundleRecord record = new BundleRecord(bundle, location, file, startOption);
+		BundleRecord previous = byLocation.put(location, record);
+		if(previous != null)
+			removeId(previous.id);
+		removeId(record.id);
+
+		if((size + 1) * 2 > records.length)
+			resize(records.length * 2);
+		int slot = indexOf(record.id);
+		ids[slot] = record.id;
+		records[slot] = record;
+		size++;
+		return record;
+	}
+
+	BundleRecord get(long id) {
+		return records[indexOf(id)];
+	}
+
+	BundleRecord get(String location) {
+		return byLocation.get(location);
+	}
+
+	boolean contains(String location) {
+		return byLocation.containsKey(location);
+	}
+
+	void remove(BundleRecord record) {
+		if(byLocation.get(record.location) == record)
+			byLocation.remove(record.location);
+		if(records[indexOf(record.id)] == record)
+			removeId(record.id);
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of slots, for iteration with {@link #slot(int)}.
+	 */
+	int capacity() {
+		return records.length;
+	}
+
+	/**
+	 * Returns the record in the specified slot, which may be {@code null}.
+	 */
+	BundleRecord slot(int index) {
+		return records[index];
+	}
+
+	/**
+	 * Returns the slot holding the id, or the empty slot where it belongs.
+	 */
+	private int indexOf(long id) {
+		int mask = records.length - 1;
+		int index = hash(id) & mask;
+		while(records[index] != null && ids[index] != id)
+			index = (index + 1) & mask;
+		return index;
+	}
+
+	private void removeId(long id) {
+		int mask = records.length - 1;
+		int hole = indexOf(id);
+		if(records[hole] == null)
+			return;
+		records[hole] = null;
+		size--;
+
+		// Shift back any following entries that would no longer be found
+		int index = hole;
+		while(true) {
+			index = (index + 1) & mask;
+			if(records[index] == null)
+				break;
+			int home = hash(ids[index]) & mask;
+			boolean reachable = hole <= index ? (hole < home && home <= index) : (hole < home || home <= index);
+			if(!reachable) {
+				ids[hole] = ids[index];
+				records[hole] = records[index];
+				records[index] = null;
+				hole = index;
+			}
+		}
+	}
+
+	private void resize(int capacity) {
+		BundleRecord[] oldRecords = records;
+		ids = new long[capacity];
+		records = new BundleRecord[capacity];
+		for (BundleRecord record : oldRecords) {
+			if(record != null) {
+				int slot = indexOf(record.id);
+				ids[slot] = record.id;
+				records[slot] = record;
+			}
+		}
+	}
+
+	private static int hash(long id) {
+		int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds and checks an AppCDS archive for the launcher and framework classes.
+ * <p>
+ * Training runs the launch in a child JVM until it is ready, recording the
+ * loaded classes, and then dumps an archive from that class list. A JVM can
+ * only map an archive when it starts, so the archive is used by passing the
+ * generated {@code .args} file to the {@code java} command. On each launch the
+ * digest recorded at training time is compared with the current class path
+ * and run bundles, and a stale archive is removed.
+ */
+class ClassDataSharing {
+
+	private static final String CLASS_LIST_SUFFIX = ".classlist";
+	private static final String DIGEST_SUFFIX = ".digest";
+	private static final String ARGS_SUFFIX = ".args";
+	private static final String SHARED_ARCHIVE_OPTION = "-XX:SharedArchiveFile=";
+	// Written to the args file while there is no archive, so that launch commands using it still work
+	private static final String NO_ARCHIVE_OPTION = "-Xshare:auto";
+
+	private final Logger log = Logger.getLogger("bndtools.launcher");
+
+	private final Properties props;
+	private final File archiveFile;
+	private final File classListFile;
+	private final File digestFile;
+	private final File argsFile;
+
+	ClassDataSharing(Properties props) {
+		this.props = props;
+		String archivePath = props.getProperty(LauncherConstants.PROP_CDS_ARCHIVE, LauncherConstants.DEFAULT_CDS_ARCHIVE);
+		this.archiveFile = new File(archivePath).getAbsoluteFile();
+		this.classListFile = new File(archiveFile.getPath() + CLASS_LIST_SUFFIX);
+		this.digestFile = new File(archiveFile.getPath() + DIGEST_SUFFIX);
+		this.argsFile = new File(archiveFile.getPath() + ARGS_SUFFIX);
+	}
+
+	/**
+	 * Runs the launch until readiness in a child JVM and builds the archive
+	 * from the classes it loaded.
+	 *
+	 * @return Whether the archive was built.
+	 */
+	boolean train(File propsFile, boolean debug) {
+		String javaExe = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		String classPath = System.getProperty("java.class.path");
+		deleteArchive();
+
+		// Run the launch until it is ready, dumping the loaded class list
+		List<String> command = new ArrayList<String>();
+		command.add(javaExe);
+		command.add("-XX:DumpLoadedClassList=" + classListFile.getPath());
+		command.add("-cp");
+		command.add(classPath);
+		command.add(Main.class.getName());
+		command.add(Main.ARG_EXIT_WHEN_READY);
+		if(debug)
+			command.add("--debug");
+		command.add(propsFile.getPath());
+		log.log(Level.INFO, "Training launch, writing class list to {0}.", classListFile);
+		if(runChild(command) != 0 || !classListFile.isFile()) {
+			log.severe("Training launch failed, no class data sharing archive was created.");
+			return false;
+		}
+
+		// Dump the archive from the class list
+		command = new ArrayList<String>();
+		command.add(javaExe);
+		command.add("-Xshare:dump");
+		command.add("-XX:SharedClassListFile=" + classListFile.getPath());
+		command.add(SHARED_ARCHIVE_OPTION + archiveFile.getPath());
+		command.add("-cp");
+		command.add(classPath);
+		log.log(Level.INFO, "Dumping class data sharing archive {0}.", archiveFile);
+		if(runChild(command) != 0 || !archiveFile.isFile()) {
+			log.severe("Failed to dump the class data sharing archive.");
+			return false;
+		}
+
+		// Record what the archive was built from
+		try {
+			writeFile(digestFile, computeDigest());
+			writeFile(argsFile, SHARED_ARCHIVE_OPTION + archiveFile.getPath());
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Error writing class data sharing archive metadata.", e);
+			return false;
+		}
+		log.log(Level.INFO, "Created class data sharing archive {0}. Launch with \"java @{1} ...\" to use it.", new Object[] { archiveFile, argsFile });
+		return true;
+	}
+
+	/**
+	 * Checks an existing archive against the current class path and run
+	 * bundles, removing it if it no longer matches.
+	 */
+	void checkArchive() {
+		if(!digestFile.isFile())
+			return;
+
+		String recordedDigest = null;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(digestFile));
+			try {
+				recordedDigest = reader.readLine();
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Error reading class data sharing digest {0}.", digestFile);
+		}
+
+		if(computeDigest().equals(recordedDigest)) {
+			if(isArchiveInUse())
+				log.log(Level.FINE, "Using class data sharing archive {0}.", archiveFile);
+			else
+				log.log(Level.INFO, "Class data sharing archive {0} is up to date but not in use. Launch with \"java @{1} ...\" to use it.", new Object[] { archiveFile, argsFile });
+		} else {
+			log.log(Level.WARNING, "Class data sharing archive {0} does not match the class path or run bundles, removing it. Run the launcher with --train to rebuild it.", archiveFile);
+			deleteArchive();
+			if(archiveFile.exists())
+				log.log(Level.WARNING, "Class data sharing archive {0} is in use and could not be removed; it will be replaced when the launcher is trained again.", archiveFile);
+		}
+	}
+
+	/**
+	 * Computes a digest over the JVM version, the class path entries and the
+	 * run bundles with their start options. Files are identified by path, size
+	 * and modification time so that no JAR needs to be read.
+	 */
+	String computeDigest() {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 digest is not available.", e);
+		}
+
+		update(digest, System.getProperty("java.vm.version"));
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			update(digest, new File(entry));
+		}
+
+		Map<String, Integer> runBundles = new TreeMap<String, Integer>();
+		BundleInstaller.parseRunBundles(props, runBundles);
+		for (Entry<String, Integer> entry : runBundles.entrySet()) {
+			update(digest, entry.getKey() + ";" + entry.getValue());
+			update(digest, BundleInstaller.getBundleFile(entry.getKey()));
+		}
+
+		StringBuilder builder = new StringBuilder();
+		for (byte b : digest.digest()) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+
+	private boolean isArchiveInUse() {
+		String option = SHARED_ARCHIVE_OPTION + archiveFile.getPath();
+		return ManagementFactory.getRuntimeMXBean().getInputArguments().contains(option);
+	}
+
+	/**
+	 * Removes the archive and its metadata. The args file is kept, without the
+	 * archive option, because launch commands refer to it and the JVM will not
+	 * start if an {@code @argfile} is missing.
+	 */
+	private void deleteArchive() {
+		digestFile.delete();
+		archiveFile.delete();
+		classListFile.delete();
+		if(argsFile.isFile()) {
+			try {
+				writeFile(argsFile, NO_ARCHIVE_OPTION);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Error resetting class data sharing args file {0}.", argsFile);
+			}
+		}
+	}
+
+	private int runChild(List<String> command) {
+		try {
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectErrorStream(true);
+			Process process = builder.start();
+
+			InputStream output = process.getInputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = output.read(buffer)) != -1) {
+				System.out.write(buffer, 0, read);
+			}
+			System.out.flush();
+			return process.waitFor();
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Error running " + command.get(0), e);
+		} catch (InterruptedException e) {
+			log.severe("Interrupted while waiting for the training process.");
+		}
+		return -1;
+	}
+
+	private static void update(MessageDigest digest, File file) {
+		update(digest, file.getAbsolutePath() + ";" + file.length() + ";" + file.lastModified());
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		try {
+			digest.update(value.getBytes("UTF-8"));
+			digest.update((byte) '\n');
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void writeFile(File file, String content) throws IOException {
+		Writer writer = new FileWriter(file);
+		try {
+			writer.write(content);
+			writer.write('\n');
+		} finally {
+			writer.close();
+		}
+	}
+}
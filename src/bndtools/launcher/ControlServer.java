@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import bndtools.launcher.BundleInstaller.BundleOperationException;
+
+/**
+ * A control channel on a loopback TCP port that lets external tooling make the
+ * {@link BundleInstaller} act immediately instead of waiting for the next poll.
+ * <p>
+ * Each request is a single line holding a command and an optional argument:
+ *
+ * <pre>
+ * sync
+ * install &lt;path&gt;
+ * update &lt;path&gt;
+ * uninstall &lt;path&gt;
+ * status
+ * timings
+ * costs [wall|cpu|alloc|threads]
+ * </pre>
+ *
+ * Paths are given in the same form as in the run bundles list. Each response
+ * starts with a line {@code OK <summary>} or {@code ERROR <summary>}, followed
+ * by zero or more detail lines, and is terminated by an empty line. A client
+ * may send any number of requests on one connection, and each connection is
+ * served on its own thread.
+ * <p>
+ * Any local process can connect to a loopback port, and the commands can
+ * install arbitrary code into the framework. So the first line of every
+ * connection must be {@code auth <token>}, where the token is a shared secret
+ * kept in a file that only the launcher's user can read. If the file does not
+ * exist, a random token is generated and written to it. A connection that
+ * does not authenticate within {@link #AUTH_TIMEOUT} is closed. The token only
+ * protects against other users on the same host; anything running as the
+ * launcher's user can read it.
+ */
+class ControlServer implements Runnable {
+
+	static final String AUTH_COMMAND = "auth";
+
+	// Time allowed for a client to send the auth line, in milliseconds
+	static final int AUTH_TIMEOUT = 10000;
+
+	private final Logger log;
+
+	private final BundleInstaller installer;
+	private final int port;
+	private final File tokenFile;
+
+	private final Set<Socket> clients = new HashSet<Socket>();
+	private ServerSocket serverSocket;
+	private byte[] token;
+	private int clientCount = 0;
+
+	ControlServer(BundleInstaller installer, int port, File tokenFile, Logger log) {
+		this.installer = installer;
+		this.log = log;
+		this.port = port;
+		this.tokenFile = tokenFile;
+	}
+
+	void start() throws IOException {
+		token = loadToken(tokenFile).getBytes("UTF-8");
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		log.log(Level.INFO, "Launcher control channel listening on 127.0.0.1:{0,number,#}, token in {1}.", new Object[] { serverSocket.getLocalPort(), tokenFile });
+
+		Thread thread = new Thread(this, "Launcher Control");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void stop() {
+		try {
+			if(serverSocket != null)
+				serverSocket.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+		synchronized (clients) {
+			for (Socket client : clients) {
+				closeQuietly(client);
+			}
+			clients.clear();
+		}
+	}
+
+	public void run() {
+		while(!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				synchronized (clients) {
+					clients.add(socket);
+				}
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						serve(socket);
+					}
+				}, "Launcher Control Client " + (++clientCount));
+				thread.setDaemon(true);
+				thread.start();
+			} catch (SocketException e) {
+				// Closed by stop()
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Error accepting launcher control connection.", e);
+			}
+		}
+		log.fine("Launcher control channel closed.");
+	}
+
+	private void serve(Socket socket) {
+		try {
+			handle(socket);
+		} catch (SocketException e) {
+			// Closed by stop() or by the client
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Error on launcher control connection.", e);
+		} finally {
+			synchronized (clients) {
+				clients.remove(socket);
+			}
+			closeQuietly(socket);
+		}
+	}
+
+	private void handle(Socket socket) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		Writer writer = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+
+		// The first line must carry the token
+		socket.setSoTimeout(AUTH_TIMEOUT);
+		String line;
+		try {
+			line = reader.readLine();
+		} catch (SocketTimeoutException e) {
+			log.fine("Launcher control client did not authenticate in time.");
+			return;
+		}
+		if(line == null)
+			return;
+		if(!authenticate(line.trim())) {
+			log.warning("Rejected unauthenticated launcher control connection.");
+			respond(writer, "ERROR authentication required", Collections.<String>emptyList());
+			return;
+		}
+		socket.setSoTimeout(0);
+		respond(writer, "OK authenticated", Collections.<String>emptyList());
+
+		while((line = reader.readLine()) != null) {
+			line = line.trim();
+			if(line.length() == 0)
+				continue;
+
+			String[] parts = line.split("\\s+", 2);
+			String command = parts[0].toLowerCase();
+			String argument = parts.length > 1 ? parts[1] : null;
+			log.log(Level.FINE, "Launcher control command: {0}", line);
+
+			try {
+				if("sync".equals(command)) {
+					long start = System.nanoTime();
+					List<BundleOperationException> errors = installer.synchronizeBundles(true);
+					respond(writer, errors, String.format(Locale.ROOT, "synchronized in %.3fms", (System.nanoTime() - start) / 1e6));
+				} else if("install".equals(command) && argument != null) {
+					respond(writer, installer.installBundle(argument), "installed " + argument);
+				} else if("update".equals(command) && argument != null) {
+					respond(writer, installer.updateBundle(argument), "updated " + argument);
+				} else if("uninstall".equals(command) && argument != null) {
+					respond(writer, installer.uninstallBundle(argument), "uninstalled " + argument);
+				} else if("status".equals(command)) {
+					List<String> status = installer.getStatus();
+					respond(writer, "OK " + status.size() + " bundles", status);
+				} else if("timings".equals(command)) {
+					respond(writer, "OK", installer.getMetrics().report());
+				} else if("costs".equals(command)) {
+					List<String> costs = installer.getCosts().report(argument != null ? argument.toLowerCase() : BundleCosts.SORT_WALL);
+					if(costs == null)
+						respond(writer, "ERROR unknown sort key: " + argument, Collections.<String>emptyList());
+					else if(!installer.getCosts().isEnabled())
+						respond(writer, "OK cost tracking is disabled", costs);
+					else
+						respond(writer, "OK " + costs.size() + " operations", costs);
+				} else {
+					respond(writer, "ERROR unknown command or missing argument: " + line, Collections.<String>emptyList());
+				}
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "Error executing launcher control command: " + line, e);
+				respond(writer, "ERROR " + e, Collections.<String>emptyList());
+			}
+		}
+	}
+
+	private boolean authenticate(String line) throws IOException {
+		String[] parts = line.split("\\s+", 2);
+		if(parts.length != 2 || !AUTH_COMMAND.equalsIgnoreCase(parts[0]))
+			return false;
+		return MessageDigest.isEqual(token, parts[1].getBytes("UTF-8"));
+	}
+
+	/**
+	 * Reads the token from the file, or generates one and writes it to a new
+	 * file that only the owner can read and write. The permissions of an
+	 * existing file are also restricted to the owner.
+	 * <p>
+	 * A new file is created with the default permissions of the process, so
+	 * the token is written to a file in a temporary directory that is
+	 * restricted to the owner before the file is created in it, and the file
+	 * is then renamed into place. The file is never reachable by other users
+	 * while it holds the token with the default permissions.
+	 */
+	static String loadToken(File file) throws IOException {
+		if(file.isFile()) {
+			restrictToOwner(file, false);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line = reader.readLine();
+				if(line == null || line.trim().length() == 0)
+					throw new IOException("Control token file " + file + " is empty.");
+				return line.trim();
+			} finally {
+				reader.close();
+			}
+		}
+
+		byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		StringBuilder builder = new StringBuilder();
+		for (byte b : random) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		String token = builder.toString();
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if(parent != null && !parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Unable to create directory " + parent);
+		// A sibling directory, so that the rename stays on one file system
+		File tempDir = new File(parent, "." + file.getName() + "-" + token.substring(0, 8));
+		if(!tempDir.mkdir())
+			throw new IOException("Unable to create directory " + tempDir);
+		try {
+			restrictToOwner(tempDir, true);
+			File temp = new File(tempDir, file.getName());
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				out.write((token + "\n").getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			restrictToOwner(temp, false);
+			if(file.exists())
+				throw new IOException("Control token file " + file + " already exists.");
+			if(!temp.renameTo(file))
+				throw new IOException("Unable to create control token file " + file);
+		} finally {
+			File[] leftover = tempDir.listFiles();
+			for (File f : leftover != null ? leftover : new File[0])
+				f.delete();
+			tempDir.delete();
+		}
+		return token;
+	}
+
+	private static void restrictToOwner(File file, boolean directory) throws IOException {
+		boolean restricted = file.setReadable(false, false) && file.setReadable(true, true)
+				&& file.setWritable(false, false) && file.setWritable(true, true)
+				&& file.setExecutable(false, false) && (!directory || file.setExecutable(true, true));
+		if(!restricted)
+			throw new IOException("Unable to restrict the permissions of control token file " + file);
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	private void respond(Writer writer, List<BundleOperationException> errors, String summary) throws IOException {
+		if(errors.isEmpty()) {
+			respond(writer, "OK " + summary, Collections.<String>emptyList());
+			return;
+		}
+		List<String> lines = new ArrayList<String>(errors.size());
+		for (BundleOperationException error : errors) {
+			String cause = error.getCause() != null ? ": " + error.getCause().getMessage() : "";
+			lines.add(error.getBundleLocation() + " " + error.getMessage() + cause);
+		}
+		respond(writer, "ERROR " + errors.size() + " error(s)", lines);
+	}
+
+	private void respond(Writer writer, String status, List<String> lines) throws IOException {
+		writer.write(status);
+		writer.write('\n');
+		for (String line : lines) {
+			writer.write(line);
+			writer.write('\n');
+		}
+		writer.write('\n');
+		writer.flush();
+	}
+}
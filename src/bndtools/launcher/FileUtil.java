@@ -27,8 +27,12 @@
 package bndtools.launcher;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * File manipulation utilities, copied from Apache Commons IO.
@@ -166,4 +170,46 @@ public class FileUtil {
             }
         }
     }
+
+    /**
+     * Copies a file to a new location, overwriting the destination if it
+     * exists. The modification date of the destination is set to that of
+     * the source.
+     *
+     * @param srcFile  an existing file to copy, must not be <code>null</code>
+     * @param destFile  the new file, must not be <code>null</code>
+     * @throws IOException if source or destination is invalid
+     * @throws IOException if an IO error occurs during copying
+     */
+    public static void copyFile(File srcFile, File destFile) throws IOException {
+        if (!srcFile.isFile()) {
+            throw new FileNotFoundException("Source '" + srcFile + "' does not exist or is not a file");
+        }
+        File parentFile = destFile.getParentFile();
+        if (parentFile != null && !parentFile.isDirectory() && !parentFile.mkdirs()) {
+            throw new IOException("Destination '" + parentFile + "' directory cannot be created");
+        }
+
+        InputStream input = new FileInputStream(srcFile);
+        try {
+            OutputStream output = new FileOutputStream(destFile);
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while (-1 != (n = input.read(buffer))) {
+                    output.write(buffer, 0, n);
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+
+        if (srcFile.length() != destFile.length()) {
+            throw new IOException("Failed to copy full contents from '" +
+                    srcFile + "' to '" + destFile + "'");
+        }
+        destFile.setLastModified(srcFile.lastModified());
+    }
 }
@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A precompiled, binary form of a launch properties file and the manifests of
+ * its run bundles, kept next to the properties file with the suffix
+ * {@code .bin}.
+ * <p>
+ * The descriptor holds the launch properties, the parsed run bundles with
+ * their start options, and for each bundle its file size, modification time,
+ * SHA-1 digest and whether it is a fragment. At startup the descriptor is
+ * read in one go and used instead of parsing the properties file, as long as
+ * the properties file and every bundle file still have the size and
+ * modification time recorded when it was compiled; otherwise it is stale and
+ * the launcher falls back to the properties file. A descriptor that cannot be
+ * parsed is treated in the same way.
+ * <p>
+ * A bundle may also be a directory. Its size and modification time are then
+ * taken from its manifest file, since those of the directory itself do not
+ * change when the manifest is edited, and no digest is recorded.
+ */
+class LaunchDescriptor {
+
+	static final String DESCRIPTOR_SUFFIX = ".bin";
+
+	private static final int MAGIC = 0x424e444c; // "BNDL"
+	private static final int VERSION = 2;
+	private static final int DIGEST_LENGTH = 20;
+	private static final byte FLAG_FRAGMENT = 1;
+	private static final byte FLAG_DIGEST = 2;
+
+	/**
+	 * What the descriptor records about a run bundle.
+	 */
+	static final class BundleEntry {
+		// The file system stat calls made by matches(File)
+		static final int MATCH_STAT_CALLS = 3;
+
+		final String location;
+		final int startOption;
+		final long length;
+		final long lastModified;
+		/** The SHA-1 digest, or {@code null} for a directory bundle. */
+		final String digest;
+		final boolean fragment;
+
+		BundleEntry(String location, int startOption, long length, long lastModified, String digest, boolean fragment) {
+			this.location = location;
+			this.startOption = startOption;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.digest = digest;
+			this.fragment = fragment;
+		}
+
+		/**
+		 * Returns whether the bundle file is still the one the entry describes.
+		 */
+		boolean matches(File file) {
+			File stamp = getStampFile(file);
+			return stamp.lastModified() == lastModified && stamp.length() == length;
+		}
+	}
+
+	private final long propsLength;
+	private final long propsLastModified;
+	private final int defaultStart;
+	private final Properties properties;
+	private final Map<String, BundleEntry> entries;
+
+	private LaunchDescriptor(long propsLength, long propsLastModified, int defaultStart, Properties properties, Map<String, BundleEntry> entries) {
+		this.propsLength = propsLength;
+		this.propsLastModified = propsLastModified;
+		this.defaultStart = defaultStart;
+		this.properties = properties;
+		this.entries = entries;
+	}
+
+	static File getFile(File propsFile) {
+		return new File(propsFile.getAbsoluteFile().getParentFile(), propsFile.getName() + DESCRIPTOR_SUFFIX);
+	}
+
+	/**
+	 * Returns a copy of the launch properties.
+	 */
+	Properties getProperties() {
+		Properties copy = new Properties();
+		copy.putAll(properties);
+		return copy;
+	}
+
+	/**
+	 * Returns whether the descriptor was compiled from the current version of
+	 * the properties file.
+	 */
+	boolean isCurrent(File propsFile) {
+		return propsFile.lastModified() == propsLastModified && propsFile.length() == propsLength;
+	}
+
+	/**
+	 * Adds the run bundles to a map of bundle location to start option, in the
+	 * same way as {@link BundleInstaller#parseRunBundles(Properties, Map)}.
+	 *
+	 * @return The default start option.
+	 */
+	int getRunBundles(Map<String, Integer> toInstall) {
+		for (BundleEntry entry : entries.values()) {
+			toInstall.put(entry.location, Integer.valueOf(entry.startOption));
+		}
+		return defaultStart;
+	}
+
+	BundleEntry getEntry(String location) {
+		return entries.get(location);
+	}
+
+	/**
+	 * Compiles the descriptor for a properties file, reading every run bundle.
+	 */
+	static void compile(File propsFile, Logger log) throws IOException {
+		long propsLength = propsFile.length();
+		long propsLastModified = propsFile.lastModified();
+		Properties props = new Properties();
+		FileInputStream input = new FileInputStream(propsFile);
+		try {
+			props.load(input);
+		} finally {
+			input.close();
+		}
+
+		Map<String, Integer> runBundles = new LinkedHashMap<String, Integer>();
+		int defaultStart = BundleInstaller.parseRunBundles(props, runBundles);
+
+		File descriptorFile = getFile(propsFile);
+		File tempFile = new File(descriptorFile.getParentFile(), descriptorFile.getName() + ".tmp");
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeLong(propsLength);
+			output.writeLong(propsLastModified);
+			output.writeInt(defaultStart);
+
+			output.writeInt(props.size());
+			for (Enumeration<?> names = props.propertyNames(); names.hasMoreElements();) {
+				String name = (String) names.nextElement();
+				writeString(output, name);
+				writeString(output, props.getProperty(name));
+			}
+
+			output.writeInt(runBundles.size());
+			for (Entry<String, Integer> runBundle : runBundles.entrySet()) {
+				String location = runBundle.getKey();
+				File file = BundleInstaller.getBundleFile(location);
+				File stamp = getStampFile(file);
+				long lastModified = stamp.lastModified();
+				long length = stamp.length();
+
+				Manifest manifest = readManifest(file);
+				boolean fragment = manifest != null && manifest.getMainAttributes().getValue("Fragment-Host") != null;
+				boolean directory = file.isDirectory();
+
+				writeString(output, location);
+				output.writeInt(runBundle.getValue().intValue());
+				output.writeLong(length);
+				output.writeLong(lastModified);
+				output.writeByte((fragment ? FLAG_FRAGMENT : 0) | (directory ? 0 : FLAG_DIGEST));
+				if(!directory)
+					output.write(fromHex(SharedBundleStore.digest(file)));
+			}
+		} finally {
+			output.close();
+		}
+
+		descriptorFile.delete();
+		if(!tempFile.renameTo(descriptorFile)) {
+			tempFile.delete();
+			throw new IOException("Unable to write launch descriptor " + descriptorFile);
+		}
+		log.log(Level.INFO, "Compiled launch descriptor {0} with {1} run bundles.", new Object[] { descriptorFile, runBundles.size() });
+	}
+
+	/**
+	 * Loads the descriptor for a properties file.
+	 *
+	 * @return The descriptor, or {@code null} if there is none or it is stale.
+	 */
+	static LaunchDescriptor load(File propsFile, Logger log) {
+		File descriptorFile = getFile(propsFile);
+		if(!descriptorFile.isFile())
+			return null;
+
+		try {
+			byte[] bytes = new byte[(int) descriptorFile.length()];
+			DataInputStream input = new DataInputStream(new FileInputStream(descriptorFile));
+			try {
+				input.readFully(bytes);
+			} finally {
+				input.close();
+			}
+			LaunchDescriptor descriptor = read(ByteBuffer.wrap(bytes), propsFile);
+			if(descriptor == null)
+				log.log(Level.INFO, "Launch descriptor {0} is stale, using {1}.", new Object[] { descriptorFile, propsFile });
+			return descriptor;
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Error reading launch descriptor " + descriptorFile + ", using " + propsFile + ".", e);
+		} catch (BufferUnderflowException e) {
+			log.log(Level.WARNING, "Launch descriptor {0} is truncated, using {1}.", new Object[] { descriptorFile, propsFile });
+		}
+		return null;
+	}
+
+	private static LaunchDescriptor read(ByteBuffer buffer, File propsFile) throws IOException {
+		if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+			return null;
+		long propsLength = buffer.getLong();
+		long propsLastModified = buffer.getLong();
+		if(propsFile.lastModified() != propsLastModified || propsFile.length() != propsLength)
+			return null;
+		int defaultStart = buffer.getInt();
+
+		int propertyCount = readCount(buffer);
+		Properties properties = new Properties();
+		for (int i = 0; i < propertyCount; i++) {
+			String name = readString(buffer);
+			properties.setProperty(name, readString(buffer));
+		}
+
+		int entryCount = readCount(buffer);
+		Map<String, BundleEntry> entries = new LinkedHashMap<String, BundleEntry>(entryCount * 2);
+		byte[] digest = new byte[DIGEST_LENGTH];
+		for (int i = 0; i < entryCount; i++) {
+			String location = readString(buffer);
+			int startOption = buffer.getInt();
+			long length = buffer.getLong();
+			long lastModified = buffer.getLong();
+			byte flags = buffer.get();
+			String digestHex = null;
+			if((flags & FLAG_DIGEST) != 0) {
+				buffer.get(digest);
+				digestHex = SharedBundleStore.toHex(digest);
+			}
+
+			BundleEntry entry = new BundleEntry(location, startOption, length, lastModified, digestHex, (flags & FLAG_FRAGMENT) != 0);
+			if(!entry.matches(BundleInstaller.getBundleFile(location)))
+				return null;
+			entries.put(location, entry);
+		}
+		return new LaunchDescriptor(propsLength, propsLastModified, defaultStart, properties, entries);
+	}
+
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException {
+		byte[] bytes = new byte[readCount(buffer)];
+		buffer.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Reads a length or count, which can never exceed the bytes left since
+	 * every element takes at least one byte.
+	 */
+	private static int readCount(ByteBuffer buffer) throws IOException {
+		int count = buffer.getInt();
+		if(count < 0 || count > buffer.remaining())
+			throw new IOException("Corrupt launch descriptor: invalid length " + count + ".");
+		return count;
+	}
+
+	/**
+	 * Returns the file whose size and modification time identify a bundle:
+	 * the bundle file itself, or the manifest of a directory bundle.
+	 */
+	static File getStampFile(File file) {
+		return file.isDirectory() ? new File(file, JarFile.MANIFEST_NAME) : file;
+	}
+
+	private static Manifest readManifest(File file) throws IOException {
+		if(file.isDirectory()) {
+			File manifestFile = new File(file, JarFile.MANIFEST_NAME);
+			if(!manifestFile.isFile())
+				return null;
+			InputStream input = new FileInputStream(manifestFile);
+			try {
+				return new Manifest(input);
+			} finally {
+				input.close();
+			}
+		}
+		JarFile jar = new JarFile(file);
+		try {
+			return jar.getManifest();
+		} finally {
+			jar.close();
+		}
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+}
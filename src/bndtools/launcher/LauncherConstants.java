@@ -30,6 +30,7 @@ public final class LauncherConstants {
 	// STORAGE
 	public static final String PROP_STORAGE_DIR = NAMESPACE + ".storageDir";
 	public static final String PROP_STORAGE_CLEAN = NAMESPACE + ".clean";
+	public static final String PROP_SHARED_STORE = NAMESPACE + ".sharedStore";
 
 	public static final String DEFAULT_STORAGE_DIR = "runtimefw";
 
@@ -37,9 +38,20 @@ public final class LauncherConstants {
 	public static final String PROP_RUN_BUNDLES = NAMESPACE + ".runBundles";
 	public static final String PROP_DYNAMIC_BUNDLES = NAMESPACE + ".dynamicBundles";
 	public static final String PROP_SHUTDOWN_ON_BUNDLE_ERROR = NAMESPACE + ".shutdownOnError";
+	public static final String PROP_TRANSACTIONAL = NAMESPACE + ".transactional";
 
 	public static final String DEFAULT_DYNAMIC_BUNDLES = TRUE.toString();
 	public static final String DEFAULT_SHUTDOWN_ON_BUNDLE_ERROR = FALSE.toString();
+	public static final String DEFAULT_TRANSACTIONAL = FALSE.toString();
+
+	// PREWARMING
+	public static final String PROP_PREWARM = NAMESPACE + ".prewarm";
+	public static final String PROP_PREWARM_THREADS = NAMESPACE + ".prewarmThreads";
+	public static final String PROP_PREWARM_MAX_BYTES = NAMESPACE + ".prewarmMaxBytes";
+
+	public static final String DEFAULT_PREWARM = FALSE.toString();
+	public static final String DEFAULT_PREWARM_THREADS = "4";
+	public static final String DEFAULT_PREWARM_MAX_BYTES = "536870912";
 
 	// BUNDLE STARTING
 	public static final String PROP_DEFAULT_START_OPTIONS = NAMESPACE + ".defaultStart";
@@ -49,6 +61,57 @@ public final class LauncherConstants {
     public static final String VALUE_START_ACTIVATION_POLICY = "activationPolicy";
     public static final String VALUE_START_TRANSIENT_ACTIVATION_POLICY = "transient+activationPolicy";
 
+	// BUNDLE START WATCHDOG
+	// With a timeout above zero, bundles are started on a "Bundle Starter"
+	// thread rather than the launcher's own thread, also in static mode
+	public static final String PROP_START_TIMEOUT = NAMESPACE + ".startTimeout";
+	public static final String PROP_START_TIMEOUT_CONTINUE = NAMESPACE + ".startTimeoutContinue";
+
+	public static final String DEFAULT_START_TIMEOUT = "0";
+	public static final String DEFAULT_START_TIMEOUT_CONTINUE = TRUE.toString();
+
+	// BUNDLE START RETRIES
+	public static final String PROP_START_RETRIES = NAMESPACE + ".startRetries";
+	public static final String PROP_START_RETRY_DELAY = NAMESPACE + ".startRetryDelay";
+	public static final String PROP_START_RETRY_MAX_DELAY = NAMESPACE + ".startRetryMaxDelay";
+
+	public static final String DEFAULT_START_RETRIES = "0";
+	public static final String DEFAULT_START_RETRY_DELAY = "1000";
+	public static final String DEFAULT_START_RETRY_MAX_DELAY = "60000";
+
+	// STARTUP TRACE
+	public static final String PROP_STARTUP_TRACE = NAMESPACE + ".startupTrace";
+
+	// BUNDLE COST TRACKING
+	public static final String PROP_TRACK_COSTS = NAMESPACE + ".trackCosts";
+
+	public static final String DEFAULT_TRACK_COSTS = FALSE.toString();
+
+	// CONTROL CHANNEL
+	// Clients must send the token from the token file, which is readable only
+	// by the launcher's user; defaults to "<storageDir>.token"
+	public static final String PROP_CONTROL_PORT = NAMESPACE + ".controlPort";
+	public static final String PROP_CONTROL_TOKEN_FILE = NAMESPACE + ".controlTokenFile";
+
+	public static final String DEFAULT_CONTROL_PORT = "-1";
+
+	// FRAMEWORK RESTART
+	public static final String PROP_RESTART_ON = NAMESPACE + ".restartOn";
+	public static final String PROP_RESTART_MAX = NAMESPACE + ".restartMax";
+	public static final String PROP_RESTART_WINDOW = NAMESPACE + ".restartWindow";
+	public static final String VALUE_RESTART_ERROR = "error";
+	public static final String VALUE_RESTART_UPDATE = "update";
+	public static final String VALUE_RESTART_STOP = "stop";
+
+	public static final String DEFAULT_RESTART_ON = "";
+	public static final String DEFAULT_RESTART_MAX = "3";
+	public static final String DEFAULT_RESTART_WINDOW = "60000";
+
+	// CLASS DATA SHARING
+	public static final String PROP_CDS_ARCHIVE = NAMESPACE + ".cdsArchive";
+
+	public static final String DEFAULT_CDS_ARCHIVE = "launcher.jsa";
+
 
 	private LauncherConstants() {} // Prevents instantiation
 }
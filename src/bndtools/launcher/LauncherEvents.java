@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Java Flight Recorder events for launcher activity.
+ * <p>
+ * The event types are defined at runtime through {@code jdk.jfr.EventFactory}
+ * using reflection, so the launcher still runs on JVMs without JFR. An event
+ * type is only defined on first use after JFR has been started, so a launch
+ * without a recording does not load or register any JFR metadata. When JFR is
+ * not started or unavailable, or an event type is not enabled in the
+ * recording, {@link EventKind#begin(Logger)} returns {@code null} and nothing
+ * is allocated. The event types are shared by all frameworks hosted in the
+ * JVM, but errors are logged to the logger of the framework an event is for.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * Object event = LauncherEvents.BUNDLE_START.begin(log);
+ * ...
+ * LauncherEvents.BUNDLE_START.commit(event, location, bundleId, outcome, log);
+ * </pre>
+ */
+final class LauncherEvents {
+
+	static final String OUTCOME_SUCCESS = "success";
+	static final String OUTCOME_FAILURE = "failure";
+
+	private static final String[] CATEGORY = new String[] { "bndtools", "Launcher" };
+
+	// Reflective access to the JFR API, looked up when a recording first
+	// needs it; all null if JFR is not available
+	private static Method flightRecorderIsInitialized;
+	private static Method eventFactoryCreate;
+	private static Method eventFactoryNewEvent;
+	private static Method eventFactoryGetEventType;
+	private static Method eventTypeIsEnabled;
+	private static Method eventBegin;
+	private static Method eventEnd;
+	private static Method eventSet;
+	private static Method eventCommit;
+	private static Constructor<?> annotationElementConstructor;
+	private static Constructor<?> valueDescriptorConstructor;
+	private static Class<?> nameAnnotation;
+	private static Class<?> labelAnnotation;
+	private static Class<?> categoryAnnotation;
+	private static boolean apiLookedUp = false;
+
+	static {
+		// Only this is looked up eagerly; it does not start JFR
+		try {
+			flightRecorderIsInitialized = Class.forName("jdk.jfr.FlightRecorder", false, LauncherEvents.class.getClassLoader()).getMethod("isInitialized");
+		} catch (Exception e) {
+			flightRecorderIsInitialized = null;
+		} catch (LinkageError e) {
+			flightRecorderIsInitialized = null;
+		}
+	}
+
+	static final EventKind BUNDLE_INSTALL = new EventKind("BundleInstall", "Bundle Install");
+	static final EventKind BUNDLE_UPDATE = new EventKind("BundleUpdate", "Bundle Update");
+	static final EventKind BUNDLE_UNINSTALL = new EventKind("BundleUninstall", "Bundle Uninstall");
+	static final EventKind BUNDLE_RESOLVE = new EventKind("BundleResolve", "Bundle Resolve");
+	static final EventKind BUNDLE_START = new EventKind("BundleStart", "Bundle Start");
+	static final EventKind STORAGE_CLEAN = new EventKind("StorageClean", "Storage Clean");
+	static final EventKind SERVICE_LOOKUP = new EventKind("ServiceLookup", "Service Lookup");
+	static final EventKind TASK_ENQUEUE = new EventKind("TaskEnqueue", "Main Thread Task Enqueue");
+	static final EventKind TASK_RUN = new EventKind("TaskRun", "Main Thread Task Run");
+
+	private LauncherEvents() {} // Prevents instantiation
+
+	/**
+	 * Returns whether JFR has been started in this JVM, by a recording
+	 * started on the command line or later. Event types are only defined
+	 * once it has, so launches without a recording pay nothing for them.
+	 */
+	private static boolean isFlightRecorderInitialized() {
+		if(flightRecorderIsInitialized == null)
+			return false;
+		try {
+			return ((Boolean) flightRecorderIsInitialized.invoke(null)).booleanValue();
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Looks up the JFR API used to define and emit events.
+	 *
+	 * @return Whether the API is available.
+	 */
+	private static synchronized boolean lookupApi() {
+		if(apiLookedUp)
+			return eventFactoryCreate != null;
+		apiLookedUp = true;
+		try {
+			Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> eventType = Class.forName("jdk.jfr.EventType");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+
+			nameAnnotation = Class.forName("jdk.jfr.Name");
+			labelAnnotation = Class.forName("jdk.jfr.Label");
+			categoryAnnotation = Class.forName("jdk.jfr.Category");
+
+			eventFactoryNewEvent = eventFactory.getMethod("newEvent");
+			eventFactoryGetEventType = eventFactory.getMethod("getEventType");
+			eventTypeIsEnabled = eventType.getMethod("isEnabled");
+			eventBegin = event.getMethod("begin");
+			eventEnd = event.getMethod("end");
+			eventSet = event.getMethod("set", int.class, Object.class);
+			eventCommit = event.getMethod("commit");
+			annotationElementConstructor = annotationElement.getConstructor(Class.class, Object.class);
+			valueDescriptorConstructor = valueDescriptor.getConstructor(Class.class, String.class);
+			eventFactoryCreate = eventFactory.getMethod("create", List.class, List.class);
+		} catch (Exception e) {
+			eventFactoryCreate = null;
+		} catch (LinkageError e) {
+			eventFactoryCreate = null;
+		}
+		return eventFactoryCreate != null;
+	}
+
+	/**
+	 * A JFR event type with the fields {@code location}, {@code bundleId} and
+	 * {@code outcome}. The duration is recorded by JFR between
+	 * {@link #begin(Logger)} and {@link #commit(Object, String, long, String, Logger)}.
+	 */
+	static final class EventKind {
+
+		private final String name;
+		private final String label;
+
+		// Defined on first use once JFR has been started
+		private volatile boolean defined = false;
+		private Object factory = null;
+		private Object eventType = null;
+
+		private EventKind(String name, String label) {
+			this.name = name;
+			this.label = label;
+		}
+
+		private synchronized void define(Logger log) {
+			if(defined)
+				return;
+			if(lookupApi()) {
+				try {
+					List<Object> annotations = new ArrayList<Object>();
+					annotations.add(annotationElementConstructor.newInstance(nameAnnotation, LauncherConstants.NAMESPACE + "." + name));
+					annotations.add(annotationElementConstructor.newInstance(labelAnnotation, label));
+					annotations.add(annotationElementConstructor.newInstance(categoryAnnotation, CATEGORY));
+
+					List<Object> fields = new ArrayList<Object>();
+					fields.add(valueDescriptorConstructor.newInstance(String.class, "location"));
+					fields.add(valueDescriptorConstructor.newInstance(long.class, "bundleId"));
+					fields.add(valueDescriptorConstructor.newInstance(String.class, "outcome"));
+
+					factory = eventFactoryCreate.invoke(null, annotations, fields);
+					eventType = eventFactoryGetEventType.invoke(factory);
+				} catch (Exception e) {
+					log.log(Level.FINE, "Unable to define JFR event " + name, e);
+					factory = null;
+					eventType = null;
+				}
+			}
+			defined = true;
+		}
+
+		/**
+		 * Begins an event.
+		 *
+		 * @param log
+		 *            The logger of the framework the event is for.
+		 * @return The event, or {@code null} if the event type is not being
+		 *         recorded.
+		 */
+		Object begin(Logger log) {
+			if(!defined) {
+				if(!isFlightRecorderInitialized())
+					return null;
+				define(log);
+			}
+			if(factory == null)
+				return null;
+			try {
+				if(!((Boolean) eventTypeIsEnabled.invoke(eventType)).booleanValue())
+					return null;
+				Object event = eventFactoryNewEvent.invoke(factory);
+				eventBegin.invoke(event);
+				return event;
+			} catch (Exception e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Ends and commits an event returned from {@link #begin(Logger)}.
+		 * Does nothing if the event is {@code null}.
+		 */
+		void commit(Object event, String location, long bundleId, String outcome, Logger log) {
+			if(event == null)
+				return;
+			try {
+				eventSet.invoke(event, 0, location);
+				eventSet.invoke(event, 1, bundleId);
+				eventSet.invoke(event, 2, outcome);
+				eventEnd.invoke(event);
+				eventCommit.invoke(event);
+			} catch (Exception e) {
+				log.log(Level.FINE, "Unable to commit JFR event", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the work done by a {@link BundleInstaller}. All methods
+ * are thread safe.
+ */
+class LauncherMetrics {
+
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	// com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long), if available
+	private static final Method allocatedBytesMethod = findAllocatedBytesMethod();
+
+	private final AtomicLong syncCycles = new AtomicLong();
+	private final AtomicLong syncTotalNanos = new AtomicLong();
+	private final AtomicLong syncLastNanos = new AtomicLong();
+	private final AtomicLong syncMaxNanos = new AtomicLong();
+	private final AtomicLong syncBundles = new AtomicLong();
+	private final AtomicLong syncLastStatCalls = new AtomicLong();
+	private final AtomicLong syncTotalStatCalls = new AtomicLong();
+	private final AtomicLong syncLastChanges = new AtomicLong();
+	private final AtomicLong syncTotalChanges = new AtomicLong();
+	private final AtomicLong syncLastAllocated = new AtomicLong(-1);
+	private final AtomicLong startTimeouts = new AtomicLong();
+	private final AtomicLong rollbacks = new AtomicLong();
+	private final AtomicLong rollbackLastNanos = new AtomicLong();
+
+	/**
+	 * Records a synchronization cycle.
+	 *
+	 * @param bundles
+	 *            The number of managed bundles after the cycle.
+	 * @param statCalls
+	 *            The number of file system stat calls made.
+	 * @param changes
+	 *            The number of bundles installed, updated or uninstalled.
+	 * @param allocatedBytes
+	 *            The bytes allocated by the cycle, or -1 if unknown.
+	 */
+	void syncCompleted(long nanos, int bundles, int statCalls, int changes, long allocatedBytes) {
+		syncCycles.incrementAndGet();
+		syncBundles.set(bundles);
+		syncLastStatCalls.set(statCalls);
+		syncTotalStatCalls.addAndGet(statCalls);
+		syncLastChanges.set(changes);
+		syncTotalChanges.addAndGet(changes);
+		syncLastAllocated.set(allocatedBytes);
+		syncTotalNanos.addAndGet(nanos);
+		syncLastNanos.set(nanos);
+		long max;
+		while((max = syncMaxNanos.get()) < nanos && !syncMaxNanos.compareAndSet(max, nanos)) {
+			// Retry
+		}
+	}
+
+	void startTimedOut() {
+		startTimeouts.incrementAndGet();
+	}
+
+	void rolledBack(long nanos) {
+		rollbacks.incrementAndGet();
+		rollbackLastNanos.set(nanos);
+	}
+
+	long getSyncCycles() {
+		return syncCycles.get();
+	}
+
+	long getLastSyncNanos() {
+		return syncLastNanos.get();
+	}
+
+	long getLastStatCalls() {
+		return syncLastStatCalls.get();
+	}
+
+	long getLastChanges() {
+		return syncLastChanges.get();
+	}
+
+	long getLastAllocatedBytes() {
+		return syncLastAllocated.get();
+	}
+
+	/**
+	 * Returns the managed bundles checked per millisecond in the last cycle.
+	 */
+	double getLastBundlesPerMilli() {
+		long nanos = syncLastNanos.get();
+		return nanos > 0 ? syncBundles.get() * 1e6 / nanos : 0d;
+	}
+
+	long getStartTimeouts() {
+		return startTimeouts.get();
+	}
+
+	long getRollbacks() {
+		return rollbacks.get();
+	}
+
+	/**
+	 * Returns the bytes allocated so far by the current thread, or -1 if the
+	 * JVM does not support allocation measurement.
+	 */
+	static long currentThreadAllocatedBytes() {
+		if(allocatedBytesMethod == null)
+			return -1;
+		try {
+			return ((Long) allocatedBytesMethod.invoke(threadBean, Long.valueOf(Thread.currentThread().getId()))).longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	private static Method findAllocatedBytesMethod() {
+		try {
+			Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+			if(!beanClass.isInstance(threadBean))
+				return null;
+			Method method = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+			Method supported = beanClass.getMethod("isThreadAllocatedMemorySupported");
+			if(!((Boolean) supported.invoke(threadBean)).booleanValue())
+				return null;
+			Method enabled = beanClass.getMethod("isThreadAllocatedMemoryEnabled");
+			if(!((Boolean) enabled.invoke(threadBean)).booleanValue())
+				return null;
+			return method;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the metrics as lines of the form {@code name value}.
+	 */
+	List<String> report() {
+		List<String> lines = new ArrayList<String>();
+		long cycles = syncCycles.get();
+		lines.add("sync.cycles " + cycles);
+		lines.add(String.format(Locale.ROOT, "sync.last.ms %.3f", syncLastNanos.get() / 1e6));
+		lines.add(String.format(Locale.ROOT, "sync.max.ms %.3f", syncMaxNanos.get() / 1e6));
+		lines.add(String.format(Locale.ROOT, "sync.mean.ms %.3f", cycles > 0 ? syncTotalNanos.get() / 1e6 / cycles : 0d));
+		lines.add("sync.bundles " + syncBundles.get());
+		lines.add("sync.last.stats " + syncLastStatCalls.get());
+		lines.add("sync.total.stats " + syncTotalStatCalls.get());
+		lines.add("sync.last.changes " + syncLastChanges.get());
+		lines.add("sync.total.changes " + syncTotalChanges.get());
+		lines.add("sync.last.allocated.bytes " + syncLastAllocated.get());
+		lines.add(String.format(Locale.ROOT, "sync.last.bundles.per.ms %.1f", getLastBundlesPerMilli()));
+		lines.add("start.timeouts " + startTimeouts.get());
+		lines.add("rollbacks " + rollbacks.get());
+		lines.add(String.format(Locale.ROOT, "rollback.last.ms %.3f", rollbackLastNanos.get() / 1e6));
+		return lines;
+	}
+}
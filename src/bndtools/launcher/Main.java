@@ -16,8 +16,12 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -35,6 +39,7 @@ import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
 import org.osgi.framework.SynchronousBundleListener;
 import org.osgi.framework.launch.Framework;
 import org.osgi.framework.launch.FrameworkFactory;
@@ -43,13 +48,30 @@ public class Main implements Runnable {
 
 	private static final String DEFAULT_PROPS_FILE = "launch.properties";
 
+	// Internal argument used by training to stop the launch once it is ready
+	static final String ARG_EXIT_WHEN_READY = "--exit-when-ready";
+
+	// The maximum time to wait for the framework to relaunch itself after an update
+	private static final long RELAUNCH_TIMEOUT = 60000;
+
+	private static final String LOG_NAME = "bndtools.launcher";
+
+	// Makes Equinox keep its configuration per framework instead of in system properties
+	private static final String EQUINOX_USE_SYSTEM_PROPERTIES = "osgi.framework.useSystemProperties";
+
 	private Logger logger;
+	private FrameworkFactory fwkFactory;
 
 	public static void main(String[] args) {
 	    Main main = new Main();
 		try {
 			main.init(args);
-			main.run();
+			if(main.train)
+				main.train();
+			else if(main.compile)
+				main.compile();
+			else
+				main.run();
 		} catch (Throwable t) {
 			t.printStackTrace();
 		} finally {
@@ -59,28 +81,279 @@ public class Main implements Runnable {
 	}
 
 	File propsFile;
+	List<File> propsFiles = new ArrayList<File>();
+	String logName = LOG_NAME;
 	boolean enableDebug = false;
+	boolean train = false;
+	boolean compile = false;
+	boolean exitWhenReady = false;
 	volatile boolean errorOccurred = false;
+	ControlServer controlServer = null;
+	BundlePrewarmer prewarmer = null;
+	SharedBundleStore sharedStore = null;
+	LaunchDescriptor descriptor = null;
+	StartupTrace startupTrace = null;
+
+	// Set when several frameworks are hosted in this JVM
+	SyncScheduler scheduler = null;
+	boolean runMainThreadExecutor = true;
+	BundleInstaller installer = null;
 
 	public void init(String[] args) throws IllegalArgumentException {
-		String fileName = DEFAULT_PROPS_FILE;
 		if(args != null) {
 			for (String arg : args) {
 				if("--debug".equalsIgnoreCase(arg))
 					enableDebug = true;
+				else if("--train".equalsIgnoreCase(arg))
+					train = true;
+				else if("--compile".equalsIgnoreCase(arg))
+					compile = true;
+				else if(ARG_EXIT_WHEN_READY.equals(arg))
+					exitWhenReady = true;
 				else if("--help".equalsIgnoreCase(arg)) {
 					printHelp();
 					System.exit(0);
 				}
 				else
-					fileName = arg;
+					propsFiles.add(new File(arg));
 			}
 		}
-		propsFile = new File(fileName);
+		if(propsFiles.isEmpty())
+			propsFiles.add(new File(DEFAULT_PROPS_FILE));
+		propsFile = propsFiles.get(0);
 	}
 
 	public void run() {
+		if(propsFiles.size() > 1 && !train) {
+			host();
+			return;
+		}
+
 		// LOAD PROPERTIES
+		Properties props = loadProperties();
+		if(props == null) return;
+
+		// LOGGING
+		Handler logHandler = initialiseLogging(props);
+
+		// CLASS DATA SHARING
+		new ClassDataSharing(props).checkArchive();
+
+		try {
+			launch(props);
+			logger.info("Main thread finishing.");
+		} finally {
+			if(logHandler != null) {
+				logHandler.close();
+			}
+		}
+	}
+
+	/**
+	 * Hosts an isolated framework for each launch properties file in this JVM.
+	 * Each framework has its own storage, bundle installer and logger namespace;
+	 * the framework factory and the bundle synchronization scheduler are shared.
+	 * Logging is configured from the first properties file, and only the first
+	 * framework gets the main-thread executor.
+	 * <p>
+	 * The framework implementation must support several instances in one JVM.
+	 * Felix does. Equinox does when it does not keep its configuration in
+	 * system properties, so that is switched off unless the launch properties
+	 * set it. Each framework is checked to see its own storage dir after it
+	 * has started, and stopped with an error if it does not. JVM-wide state
+	 * that is not checked, such as URL handler factories, is still shared.
+	 */
+	void host() {
+		Properties props = loadProperties();
+		if(props == null) return;
+
+		Handler logHandler = initialiseLogging(props);
+		new ClassDataSharing(props).checkArchive();
+
+		scheduler = new SyncScheduler();
+		try {
+			// Load all descriptors before starting anything
+			List<Main> hosted = new ArrayList<Main>(propsFiles.size());
+			List<Properties> hostedProps = new ArrayList<Properties>(propsFiles.size());
+			Set<File> storageDirs = new HashSet<File>();
+			for (File file : propsFiles) {
+				Main main = createHosted(file);
+				Properties mainProps = main.loadProperties();
+				if(mainProps == null) {
+					errorOccurred = true;
+					return;
+				}
+				File storageDir = main.getStorageDir(mainProps).getAbsoluteFile();
+				if(!storageDirs.add(storageDir)) {
+					logger.log(Level.SEVERE, "Launch properties file {0} uses storage dir {1}, which is already used by another hosted framework.",
+							new Object[] { file, storageDir });
+					errorOccurred = true;
+					return;
+				}
+				hosted.add(main);
+				hostedProps.add(mainProps);
+			}
+
+			// Resolve the framework factory once for all frameworks
+			if(!loadFrameworkFactory())
+				return;
+			scheduler.start();
+
+			// Launch the other frameworks on their own threads and the first on this one
+			List<Thread> threads = new ArrayList<Thread>(hosted.size());
+			for (int i = 1; i < hosted.size(); i++) {
+				final Main main = hosted.get(i);
+				final Properties mainProps = hostedProps.get(i);
+				main.fwkFactory = fwkFactory;
+				main.runMainThreadExecutor = false;
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						main.launch(mainProps);
+					}
+				}, "Framework " + main.propsFile.getName());
+				thread.start();
+				threads.add(thread);
+			}
+			Main first = hosted.get(0);
+			first.fwkFactory = fwkFactory;
+			first.launch(hostedProps.get(0));
+
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			for (Main main : hosted) {
+				errorOccurred |= main.errorOccurred;
+			}
+			logger.info("Main thread finishing.");
+		} catch (InterruptedException e) {
+			// Ignore
+		} finally {
+			try {
+				scheduler.stop();
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+			if(logHandler != null) {
+				logHandler.close();
+			}
+		}
+	}
+
+	/**
+	 * Creates the launcher for one hosted framework, logging under a namespace
+	 * derived from its properties file name.
+	 */
+	Main createHosted(File file) {
+		Main main = new Main();
+		main.propsFile = file;
+		main.propsFiles.add(file);
+		main.enableDebug = enableDebug;
+		main.scheduler = scheduler;
+
+		String name = file.getName();
+		if(name.endsWith(".properties"))
+			name = name.substring(0, name.length() - ".properties".length());
+		main.logName = LOG_NAME + "." + name.replace('.', '_');
+		main.logger = Logger.getLogger(main.logName);
+		return main;
+	}
+
+	/**
+	 * Creates the storage and runs the framework until it stops, restarting it
+	 * in this JVM if configured.
+	 */
+	void launch(Properties props) {
+		// STORAGE
+		File storageDir = initialiseStorage(props);
+
+		// LOAD RUNTIME PROPERTIES
+		Properties config = new Properties();
+		config.put(Constants.FRAMEWORK_STORAGE, storageDir.getAbsolutePath());
+		copyFrameworkConfig(props, config);
+		if(scheduler != null && !config.containsKey(EQUINOX_USE_SYSTEM_PROPERTIES))
+			config.setProperty(EQUINOX_USE_SYSTEM_PROPERTIES, "false");
+
+		// PREWARM BUNDLE FILES WHILE THE FRAMEWORK STARTS
+		if("true".equalsIgnoreCase(props.getProperty(LauncherConstants.PROP_PREWARM, LauncherConstants.DEFAULT_PREWARM))) {
+			prewarmer = new BundlePrewarmer((int) readLong(props, LauncherConstants.PROP_PREWARM_THREADS, LauncherConstants.DEFAULT_PREWARM_THREADS),
+					readLong(props, LauncherConstants.PROP_PREWARM_MAX_BYTES, LauncherConstants.DEFAULT_PREWARM_MAX_BYTES));
+			prewarmer.start(props);
+		}
+
+		// RUN THE FRAMEWORK, RESTARTING IT IN THIS JVM IF CONFIGURED
+		RestartPolicy restartPolicy = new RestartPolicy(props, (int) readLong(props, LauncherConstants.PROP_RESTART_MAX, LauncherConstants.DEFAULT_RESTART_MAX),
+				readLong(props, LauncherConstants.PROP_RESTART_WINDOW, LauncherConstants.DEFAULT_RESTART_WINDOW), logger);
+		while(true) {
+			errorOccurred = false;
+			FrameworkEvent stopEvent = runFramework(storageDir, config, props);
+			if(stopEvent == null || exitWhenReady || !restartPolicy.isEnabled() || !restartPolicy.shouldRestart(stopEvent, errorOccurred))
+				break;
+
+			logger.warning("Restarting framework.");
+			// Keep the warm storage from the previous run
+			config.remove(Constants.FRAMEWORK_STORAGE_CLEAN);
+		}
+	}
+
+	/**
+	 * Builds a class data sharing archive by running the launch until it is
+	 * ready in a child JVM.
+	 */
+	public void train() {
+		Properties props = loadProperties();
+		if(props == null) {
+			errorOccurred = true;
+			return;
+		}
+
+		Handler logHandler = initialiseLogging(props);
+		try {
+			if(!new ClassDataSharing(props).train(propsFile, enableDebug))
+				errorOccurred = true;
+		} finally {
+			if(logHandler != null) {
+				logHandler.close();
+			}
+		}
+	}
+
+	/**
+	 * Compiles a binary launch descriptor for each launch properties file.
+	 */
+	public void compile() {
+		Properties props = loadProperties();
+		if(props == null) {
+			errorOccurred = true;
+			return;
+		}
+
+		Handler logHandler = initialiseLogging(props);
+		try {
+			for (File file : propsFiles) {
+				try {
+					LaunchDescriptor.compile(file, logger);
+				} catch (IOException e) {
+					logger.log(Level.SEVERE, "Error compiling launch descriptor for " + file + ".", e);
+					errorOccurred = true;
+				}
+			}
+		} finally {
+			if(logHandler != null) {
+				logHandler.close();
+			}
+		}
+	}
+
+	Properties loadProperties() {
+		// Use the precompiled launch descriptor if it is current
+		if(!compile) {
+			descriptor = LaunchDescriptor.load(propsFile, Logger.getLogger(logName));
+			if(descriptor != null) {
+				debug(MessageFormat.format("Loading launcher properties from {0}.", LaunchDescriptor.getFile(propsFile)));
+				return descriptor.getProperties();
+			}
+		}
+
 		Properties props = new Properties();
 		try {
 			if(propsFile.isFile()) {
@@ -92,48 +365,159 @@ public class Main implements Runnable {
 		} catch (IOException e) {
 			System.err.println("Error loading launch properties.");
 			e.printStackTrace();
-			return;
+			return null;
 		}
+		return props;
+	}
 
-		// LOGGING
-		Handler logHandler = initialiseLogging(props);
+	/**
+	 * Creates and starts a framework, synchronizes its bundles and waits for
+	 * it to stop.
+	 *
+	 * @return The event that caused the framework to stop, or {@code null} if
+	 *         the framework could not be started or the wait was interrupted.
+	 */
+	FrameworkEvent runFramework(File storageDir, Properties config, Properties props) {
+		// CREATE FRAMEWORK AND SYNC BUNDLES
+		String tracePath = props.getProperty(LauncherConstants.PROP_STARTUP_TRACE);
+		if(tracePath != null && tracePath.trim().length() > 0)
+			startupTrace = new StartupTrace(new File(tracePath.trim()), logger);
+		long frameworkStart = System.nanoTime();
+		Framework framework = createAndRunFramework(config);
+		long frameworkStarted = System.nanoTime();
+		if(startupTrace != null)
+			startupTrace.record(StartupTrace.PHASE_FRAMEWORK, null, 0, frameworkStart, frameworkStarted);
+
+		// Wait for prewarming, only done for the first start
+		if(prewarmer != null) {
+			prewarmer.awaitCompletion(frameworkStart, frameworkStarted);
+			prewarmer = null;
+		}
 
-		// STORAGE
-		File storageDir = initialiseStorage(props);
+		if(framework == null) return null;
+		if(scheduler != null && !isIsolated(framework, config)) {
+			errorOccurred = true;
+			try {
+				framework.stop();
+				framework.waitForStop(0);
+			} catch (BundleException e) {
+				logger.log(Level.SEVERE, "Failed to stop OSGi Framework.", e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return null;
+		}
 
-		try {
-			// LOAD RUNTIME PROPERTIES
-			Properties config = new Properties();
-			config.put(Constants.FRAMEWORK_STORAGE, storageDir.getAbsolutePath());
-			copyFrameworkConfig(props, config);
-
-			// CREATE FRAMEWORK AND SYNC BUNDLES
-			Framework framework = createAndRunFramework(config);
-			if(framework == null) return;
+		FrameworkEvent stopEvent = null;
+		while(true) {
 			BundleContext fwContext = framework.getBundleContext();
 
 			// CREATE INSTALLER
-			Thread installerThread = createInstaller(fwContext, props);
-			
-			// MAIN THREAD EXECUTOR
-			if(framework.getState() == Bundle.ACTIVE) // Check the framework hasn't already shutdown
-			    createAndRunMainThreadExecutor(fwContext, "main");
-
-			// SHUTDOWN
+			Thread installerThread = null;
 			try {
+				installerThread = createInstaller(fwContext, props, storageDir);
+
+				// READY; STOP AGAIN IF TRAINING
+				if(exitWhenReady) {
+					logger.info("Launch is ready, stopping the framework.");
+					try {
+						framework.stop();
+					} catch (BundleException e) {
+						logger.log(Level.SEVERE, "Failed to stop OSGi Framework.", e);
+					}
+				}
+
+				// MAIN THREAD EXECUTOR
+				if(runMainThreadExecutor && !exitWhenReady && framework.getState() == Bundle.ACTIVE) // Check the framework hasn't already shutdown
+				    createAndRunMainThreadExecutor(fwContext, "main");
+
+				// SHUTDOWN
 				logger.info("Waiting for the framework to stop.");
-				framework.waitForStop(0);
-				if(installerThread != null)
-					installerThread.interrupt();
-				logger.info("Framework stopped.");
+				stopEvent = framework.waitForStop(0);
 			} catch (InterruptedException e) {
 				// Ignore
+				return null;
+			} finally {
+				shutdownInstaller(installerThread);
 			}
-			logger.info("Main thread finishing.");
-		} finally {
-			if(logHandler != null) {
-				logHandler.close();
+			logger.info("Framework stopped.");
+
+			// After Framework.update() the framework relaunches itself; serve
+			// the relaunched instance rather than creating another one
+			if(stopEvent.getType() != FrameworkEvent.STOPPED_UPDATE || !awaitRelaunch(framework))
+				return stopEvent;
+			logger.info("Framework relaunched itself after an update.");
+		}
+	}
+
+	/**
+	 * Checks that a hosted framework sees its own storage dir. A framework
+	 * implementation that keeps its configuration in JVM-wide state sees that
+	 * of another instance, and cannot be hosted with others.
+	 */
+	boolean isIsolated(Framework framework, Properties config) {
+		String expected = config.getProperty(Constants.FRAMEWORK_STORAGE);
+		String actual = framework.getBundleContext().getProperty(Constants.FRAMEWORK_STORAGE);
+		if(expected.equals(actual))
+			return true;
+		logger.log(Level.SEVERE, "Framework reports storage dir {0} instead of {1}; it cannot be hosted with other frameworks in one JVM.",
+				new Object[] { actual, expected });
+		return false;
+	}
+
+	/**
+	 * Stops the installer, control channel and shared store of a framework
+	 * that has stopped.
+	 */
+	private void shutdownInstaller(Thread installerThread) {
+		if(controlServer != null) {
+			controlServer.stop();
+			controlServer = null;
+		}
+		if(installerThread != null) {
+			installerThread.interrupt();
+			boolean interrupted = false;
+			while(installerThread.isAlive()) {
+				try {
+					installerThread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+		if(scheduler != null && installer != null)
+			scheduler.remove(installer);
+		if(installer != null)
+			installer.close();
+		installer = null;
+		if(sharedStore != null) {
+			sharedStore.close();
+			sharedStore = null;
+		}
+	}
+
+	/**
+	 * Waits for a framework that stopped with
+	 * {@link FrameworkEvent#STOPPED_UPDATE} to become active again.
+	 *
+	 * @return Whether the framework relaunched.
+	 */
+	private boolean awaitRelaunch(Framework framework) {
+		long deadline = System.currentTimeMillis() + RELAUNCH_TIMEOUT;
+		try {
+			while(framework.getState() != Bundle.ACTIVE) {
+				if(System.currentTimeMillis() > deadline) {
+					logger.severe("Framework did not relaunch itself after an update.");
+					return false;
+				}
+				Thread.sleep(100);
 			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
 		}
 	}
 
@@ -170,13 +554,12 @@ public class Main implements Runnable {
 		handler.setLevel(Level.ALL); // Ensure the handler does not filter out any messages from the loggers
 		rootLogger.addHandler(handler);
 		rootLogger.setLevel(Level.parse(logLevelStr));
-		logger = Logger.getLogger("bndtools.launcher");
+		logger = Logger.getLogger(logName);
 
 		return handler;
 	}
 
-	File initialiseStorage(Properties props) {
-		// Check the storage dir path
+	File getStorageDir(Properties props) {
 		String storagePathStr = props.getProperty(LauncherConstants.PROP_STORAGE_DIR, LauncherConstants.DEFAULT_STORAGE_DIR);
 
 		File storagePath = new File(storagePathStr);
@@ -184,21 +567,52 @@ public class Main implements Runnable {
 			File workingDir = new File(System.getProperty("user.dir"));
 			storagePath = new File(workingDir, storagePathStr);
 		}
+		return storagePath;
+	}
+
+	File initialiseStorage(Properties props) {
+		// Check the storage dir path
+		File storagePath = getStorageDir(props);
 		logger.log(Level.FINE, "Using storage dir: {0}.", storagePath.getAbsolutePath());
 
 		// Clean it if requested
 		boolean clean = "true".equalsIgnoreCase(props.getProperty(LauncherConstants.PROP_STORAGE_CLEAN));
 		if(clean) {
+			Object event = LauncherEvents.STORAGE_CLEAN.begin(logger);
+			String outcome = LauncherEvents.OUTCOME_FAILURE;
 			try {
 				logger.log(Level.INFO, "Cleaning storage directory {0}.", storagePath.getAbsolutePath());
 				FileUtil.deleteDirectory(storagePath);
+				FileUtil.deleteDirectory(getBackupDir(storagePath));
+				outcome = LauncherEvents.OUTCOME_SUCCESS;
 			} catch (IOException e) {
 				logger.log(Level.SEVERE, "Error while cleaning framework storage directory {0}.", storagePath.getAbsolutePath());
+			} finally {
+				LauncherEvents.STORAGE_CLEAN.commit(event, storagePath.getAbsolutePath(), -1, outcome, logger);
 			}
 		}
 		return storagePath;
 	}
 
+	/**
+	 * Returns the directory holding the last known good bundle copies for
+	 * transactional synchronization, which sits next to the storage dir.
+	 */
+	File getBackupDir(File storageDir) {
+		return new File(storageDir.getParentFile(), storageDir.getName() + ".lastgood");
+	}
+
+	/**
+	 * Returns the file holding the control channel token, which by default
+	 * sits next to the storage dir.
+	 */
+	File getControlTokenFile(Properties props, File storageDir) {
+		String path = props.getProperty(LauncherConstants.PROP_CONTROL_TOKEN_FILE);
+		if(path != null && path.trim().length() > 0)
+			return new File(path.trim()).getAbsoluteFile();
+		return new File(storageDir.getParentFile(), storageDir.getName() + ".token");
+	}
+
 	void copyFrameworkConfig(Properties props, Properties frameworkConfig) {
 		for(Enumeration<?> names = props.propertyNames(); names.hasMoreElements(); ) {
 			String name = (String) names.nextElement();
@@ -208,13 +622,25 @@ public class Main implements Runnable {
 		}
 	}
 
-	Framework createAndRunFramework(Properties config) {
-		ServiceFinder<FrameworkFactory> finder = ServiceFinder.create(FrameworkFactory.class, Main.class.getClassLoader());
-		FrameworkFactory fwkFactory = finder.loadOneInstance();
+	/**
+	 * Resolves the framework factory. It is resolved once and reused when the
+	 * framework is restarted, and shared by hosted frameworks.
+	 */
+	boolean loadFrameworkFactory() {
 		if (fwkFactory == null) {
-			logger.severe("No FrameworkFactory service providers available.");
-			return null;
+			ServiceFinder<FrameworkFactory> finder = ServiceFinder.create(FrameworkFactory.class, Main.class.getClassLoader());
+			fwkFactory = finder.loadOneInstance();
+			if (fwkFactory == null) {
+				logger.severe("No FrameworkFactory service providers available.");
+				return false;
+			}
 		}
+		return true;
+	}
+
+	Framework createAndRunFramework(Properties config) {
+		if (!loadFrameworkFactory())
+			return null;
 
 		Framework framework = fwkFactory.newFramework(config);
 		logger.info("Created framework");
@@ -229,9 +655,10 @@ public class Main implements Runnable {
 		return framework;
 	}
 
-	Thread createInstaller(final BundleContext framework, Properties props) {
+	Thread createInstaller(final BundleContext framework, Properties props, File storageDir) {
 		boolean dynamic = "true".equalsIgnoreCase(props.getProperty(LauncherConstants.PROP_DYNAMIC_BUNDLES, LauncherConstants.DEFAULT_DYNAMIC_BUNDLES));
 		boolean killOnError = "true".equalsIgnoreCase(props.getProperty(LauncherConstants.PROP_SHUTDOWN_ON_BUNDLE_ERROR, LauncherConstants.DEFAULT_SHUTDOWN_ON_BUNDLE_ERROR));
+		boolean transactional = "true".equalsIgnoreCase(props.getProperty(LauncherConstants.PROP_TRANSACTIONAL, LauncherConstants.DEFAULT_TRANSACTIONAL));
 		
 		Runnable errorCallback = null;
 		if(killOnError) {
@@ -250,15 +677,59 @@ public class Main implements Runnable {
 
 		// Start the framework and synchronize the bundles; either once or continuously
 		Thread installerThread = null;
-		BundleInstaller installer = new BundleInstaller(propsFile, framework, errorCallback);
+		installer = new BundleInstaller(propsFile, framework, errorCallback, logName);
+		installer.setStartTimeout(readLong(props, LauncherConstants.PROP_START_TIMEOUT, LauncherConstants.DEFAULT_START_TIMEOUT),
+				"true".equalsIgnoreCase(props.getProperty(LauncherConstants.PROP_START_TIMEOUT_CONTINUE, LauncherConstants.DEFAULT_START_TIMEOUT_CONTINUE)));
+		installer.setStartRetries((int) readLong(props, LauncherConstants.PROP_START_RETRIES, LauncherConstants.DEFAULT_START_RETRIES),
+				readLong(props, LauncherConstants.PROP_START_RETRY_DELAY, LauncherConstants.DEFAULT_START_RETRY_DELAY),
+				readLong(props, LauncherConstants.PROP_START_RETRY_MAX_DELAY, LauncherConstants.DEFAULT_START_RETRY_MAX_DELAY));
+		installer.setCostTracking("true".equalsIgnoreCase(props.getProperty(LauncherConstants.PROP_TRACK_COSTS, LauncherConstants.DEFAULT_TRACK_COSTS)));
+		if(transactional)
+			installer.enableTransactions(getBackupDir(storageDir));
+
+		// Only the first run of the framework starts from the launch descriptor
+		installer.setLaunchDescriptor(descriptor);
+		descriptor = null;
+		installer.setStartupTrace(startupTrace);
+		startupTrace = null;
+
+		// Install through the shared bundle store if configured
+		String sharedStorePath = props.getProperty(LauncherConstants.PROP_SHARED_STORE);
+		if(sharedStorePath != null && sharedStorePath.trim().length() > 0) {
+			sharedStore = new SharedBundleStore(new File(sharedStorePath.trim()).getAbsoluteFile(), storageDir, logger);
+			try {
+				sharedStore.open();
+				installer.setSharedStore(sharedStore);
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Failed to open the shared bundle store, installing bundles directly.", e);
+				sharedStore = null;
+			}
+		}
 
-		if(dynamic) {
-			installerThread = new Thread(installer);
-			installerThread.start();
+		if(dynamic && !exitWhenReady) {
+			if(scheduler != null) {
+				installer.synchronizeBundles();
+				scheduler.add(installer);
+			} else {
+				installerThread = new Thread(installer);
+				installerThread.start();
+			}
 		} else {
 			installer.synchronizeBundles();
 		}
 
+		// Open the control channel if requested
+		int controlPort = (int) readLong(props, LauncherConstants.PROP_CONTROL_PORT, LauncherConstants.DEFAULT_CONTROL_PORT);
+		if(controlPort >= 0 && !exitWhenReady) {
+			controlServer = new ControlServer(installer, controlPort, getControlTokenFile(props, storageDir), logger);
+			try {
+				controlServer.start();
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Failed to open the launcher control channel.", e);
+				controlServer = null;
+			}
+		}
+
 		return installerThread;
 	}
 
@@ -285,8 +756,15 @@ public class Main implements Runnable {
 		Executor mainThreadExecutor = new Executor() {
 			public void execute(Runnable command) {
 				logger.info("Main-thread executor enqueuing a new task");
-				// add() will throw an exception if the queue is full, which is what we want
-				workQueue.add(command);
+				Object event = LauncherEvents.TASK_ENQUEUE.begin(logger);
+				String outcome = LauncherEvents.OUTCOME_FAILURE;
+				try {
+					// add() will throw an exception if the queue is full, which is what we want
+					workQueue.add(command);
+					outcome = LauncherEvents.OUTCOME_SUCCESS;
+				} finally {
+					LauncherEvents.TASK_ENQUEUE.commit(event, command.getClass().getName(), -1, outcome, logger);
+				}
 			}
 		};
 		framework.registerService(Executor.class.getName(), mainThreadExecutor, mainThreadExecutorProps);
@@ -312,7 +790,14 @@ public class Main implements Runnable {
 				Runnable work = workQueue.poll(3, TimeUnit.SECONDS);
 				if(work != null) {
 					logger.fine("Main thread received a work task, executing.");
-					work.run();
+					Object event = LauncherEvents.TASK_RUN.begin(logger);
+					String outcome = LauncherEvents.OUTCOME_FAILURE;
+					try {
+						work.run();
+						outcome = LauncherEvents.OUTCOME_SUCCESS;
+					} finally {
+						LauncherEvents.TASK_RUN.commit(event, work.getClass().getName(), -1, outcome, logger);
+					}
 				}
 			} catch (InterruptedException e) {
 				logger.fine("Main thread work queue polling loop was interrupted.");
@@ -322,11 +807,21 @@ public class Main implements Runnable {
 		Thread.interrupted();
 	}
 
+	long readLong(Properties props, String name, String defaultValue) {
+		String value = props.getProperty(name, defaultValue);
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			logger.log(Level.WARNING, "Invalid value \"{0}\" for launcher property {1}, using {2}.", new Object[] { value, name, defaultValue });
+			return Long.parseLong(defaultValue);
+		}
+	}
+
 	void debug(String message) {
 		if(enableDebug) System.err.println(message);
 	}
 
 	void printHelp() {
-		System.out.println("java -cp org.eclipse.osgi-3.5.2.jar:bndtools.launcher.jar bndtools.launcher.Main [--debug] [launch.properties]");
+		System.out.println("java -cp org.eclipse.osgi-3.5.2.jar:bndtools.launcher.jar bndtools.launcher.Main [--debug] [--train] [--compile] [launch.properties ...]");
 	}
 }
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.FrameworkEvent;
+
+/**
+ * Decides whether a stopped framework should be recreated in the same JVM,
+ * based on the configured exit conditions and a sliding-window limit on the
+ * number of restarts.
+ */
+class RestartPolicy {
+
+	private final Logger log;
+
+	private final boolean onError;
+	private final boolean onUpdate;
+	private final boolean onStop;
+	private final int maxRestarts;
+	private final long window;
+
+	private final LinkedList<Long> restartTimes = new LinkedList<Long>();
+
+	/**
+	 * @param props
+	 *            The launcher properties, giving the restart conditions.
+	 * @param maxRestarts
+	 *            The maximum number of restarts within the window.
+	 * @param window
+	 *            The length of the sliding window, in milliseconds.
+	 */
+	RestartPolicy(Properties props, int maxRestarts, long window, Logger log) {
+		this.log = log;
+		boolean error = false, update = false, stop = false;
+		String conditionsStr = props.getProperty(LauncherConstants.PROP_RESTART_ON, LauncherConstants.DEFAULT_RESTART_ON);
+		for (String condition : conditionsStr.split(",")) {
+			condition = condition.trim();
+			if(LauncherConstants.VALUE_RESTART_ERROR.equalsIgnoreCase(condition))
+				error = true;
+			else if(LauncherConstants.VALUE_RESTART_UPDATE.equalsIgnoreCase(condition))
+				update = true;
+			else if(LauncherConstants.VALUE_RESTART_STOP.equalsIgnoreCase(condition))
+				stop = true;
+			else if(condition.length() > 0)
+				log.log(Level.WARNING, "Ignoring unknown framework restart condition \"{0}\".", condition);
+		}
+		this.onError = error;
+		this.onUpdate = update;
+		this.onStop = stop;
+		this.maxRestarts = maxRestarts;
+		this.window = window;
+	}
+
+	boolean isEnabled() {
+		return onError || onUpdate || onStop;
+	}
+
+	/**
+	 * Returns whether the framework should be restarted after it stopped with
+	 * the specified event. A positive answer is counted against the restart
+	 * limit.
+	 *
+	 * @param stopEvent
+	 *            The event returned from {@code Framework.waitForStop}. A
+	 *            framework that stops with
+	 *            {@link FrameworkEvent#STOPPED_UPDATE} relaunches itself, so
+	 *            that event only gets here if the relaunch failed.
+	 * @param stoppedOnError
+	 *            Whether the framework was stopped by the launcher because of
+	 *            bundle errors.
+	 */
+	boolean shouldRestart(FrameworkEvent stopEvent, boolean stoppedOnError) {
+		boolean matched;
+		if(stoppedOnError)
+			matched = onError;
+		else if(stopEvent.getType() == FrameworkEvent.STOPPED_UPDATE)
+			matched = onUpdate || onStop;
+		else
+			matched = onStop;
+		if(!matched)
+			return false;
+
+		long now = System.currentTimeMillis();
+		while(!restartTimes.isEmpty() && now - restartTimes.getFirst() > window)
+			restartTimes.removeFirst();
+		if(restartTimes.size() >= maxRestarts) {
+			log.log(Level.SEVERE, "Framework restart limit reached ({0} restarts within {1}ms), not restarting.", new Object[] { maxRestarts, window });
+			return false;
+		}
+		restartTimes.addLast(now);
+		return true;
+	}
+}
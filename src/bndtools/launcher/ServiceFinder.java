@@ -39,6 +39,8 @@ public class ServiceFinder<T> {
 	}
 
 	public T loadOneInstance() {
+		Object event = LauncherEvents.SERVICE_LOOKUP.begin(log);
+		String outcome = LauncherEvents.OUTCOME_FAILURE;
 		String implementation = null;
 		try {
 			Collection<String> implementations = getMetaInfServiceNames();
@@ -52,6 +54,7 @@ public class ServiceFinder<T> {
 			
 			@SuppressWarnings("unchecked")
 			T instance = (T) clazz.newInstance();
+			outcome = LauncherEvents.OUTCOME_SUCCESS;
 			return instance;
 		} catch (IOException e) {
 			System.err.println("An error occurred while searching for a Framework Factory implementation.");
@@ -62,6 +65,8 @@ public class ServiceFinder<T> {
 			log.log(Level.SEVERE, MessageFormat.format("An error occurred instantiating the Framework Factory ({0}).", implementation), e);
 		} catch (IllegalAccessException e) {
 			log.log(Level.SEVERE, MessageFormat.format("An error occurred instantiating the Framework Factory ({0}).", implementation), e);
+		} finally {
+			LauncherEvents.SERVICE_LOOKUP.commit(event, implementation != null ? implementation : clazz.getName(), -1, outcome, log);
 		}
 		return null;
 	}
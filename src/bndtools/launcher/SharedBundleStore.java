@@ -0,0 +1,432 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A content-addressed store of bundle JARs shared by the launcher instances on
+ * a host.
+ * <p>
+ * Each JAR is stored once as {@code <sha1>.jar}. New entries are written to a
+ * temporary file and renamed into place while holding the store lock, so
+ * concurrent instances never see a partial entry. Bundles are installed from
+ * the store through a {@code reference:} URL where the framework supports it,
+ * so that the framework uses the shared file in place rather than copying it
+ * into its own storage.
+ * <p>
+ * Each instance records its framework storage directory and the entries it
+ * uses, with the locations of the bundles installed from them, in
+ * {@code refs/<instance>.refs} and holds a lock on {@code refs/<instance>.lock}
+ * while running. Lock files are never deleted. A stopped instance keeps its
+ * storage, and with it bundles installed by reference into the store, so its
+ * record is kept until that storage directory has been deleted. Garbage
+ * collection removes only the records of instances that are not running and
+ * whose storage is gone, and deletes entries that no remaining record
+ * references and that are older than a grace period.
+ */
+class SharedBundleStore {
+
+	private static final String ENTRY_SUFFIX = ".jar";
+	private static final String REFS_DIR = "refs";
+	private static final String REFS_SUFFIX = ".refs";
+	private static final String LOCK_SUFFIX = ".lock";
+	private static final String STORE_LOCK = ".lock";
+	private static final String TEMP_PREFIX = ".tmp-";
+	private static final String STORAGE_HEADER = "#storage ";
+
+	// Entries younger than this are never collected, as the instance that
+	// created or reused them may not have recorded its reference yet
+	private static final long GC_GRACE_PERIOD = 10 * 60 * 1000;
+
+	// Serialises use of the store lock within this JVM, since file locks are
+	// held on behalf of the whole JVM
+	private static final Object JVM_LOCK = new Object();
+
+	private static Boolean referenceUrlSupported = null;
+
+	private final Logger log;
+
+	private final File storeDir;
+	private final File refsDir;
+	private final File storageDir;
+	private final String instanceId;
+
+	// Map of bundle location to the digest of the entry it was installed from
+	private final Map<String, String> references = new HashMap<String, String>();
+	private boolean referencesChanged = false;
+
+	private RandomAccessFile instanceLockFile;
+	private FileLock instanceLock;
+
+	/**
+	 * @param storeDir
+	 *            The shared store directory.
+	 * @param storageDir
+	 *            The framework storage directory of this instance, which
+	 *            identifies the instance.
+	 */
+	SharedBundleStore(File storeDir, File storageDir, Logger log) {
+		this.storeDir = storeDir;
+		this.log = log;
+		this.refsDir = new File(storeDir, REFS_DIR);
+		this.storageDir = storageDir.getAbsoluteFile();
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			this.instanceId = toHex(digest.digest(storageDir.getAbsolutePath().getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 digest is not available.", e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Opens the store for this instance, loading the references recorded by a
+	 * previous run and collecting garbage.
+	 */
+	void open() throws IOException {
+		if(!refsDir.isDirectory() && !refsDir.mkdirs())
+			throw new IOException("Unable to create shared bundle store directory " + refsDir);
+
+		// Take the instance lock and load our references under the store lock,
+		// so that a concurrent garbage collection cannot find the instance
+		// stopped and remove its references in between
+		synchronized (JVM_LOCK) {
+			RandomAccessFile lockFile = new RandomAccessFile(new File(storeDir, STORE_LOCK), "rw");
+			try {
+				FileLock lock = lockFile.getChannel().lock();
+				try {
+					instanceLockFile = new RandomAccessFile(new File(refsDir, instanceId + LOCK_SUFFIX), "rw");
+					try {
+						instanceLock = instanceLockFile.getChannel().tryLock();
+					} catch (OverlappingFileLockException e) {
+						instanceLock = null;
+					}
+					if(instanceLock == null) {
+						instanceLockFile.close();
+						throw new IOException("Shared bundle store instance " + instanceId + " is already in use.");
+					}
+
+					File refsFile = new File(refsDir, instanceId + REFS_SUFFIX);
+					if(refsFile.isFile())
+						readReferences(refsFile, references);
+					// Rewrite the record in case it predates the storage header
+					referencesChanged = true;
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+
+		collectGarbage();
+		log.log(Level.INFO, "Using shared bundle store {0} as instance {1}.", new Object[] { storeDir, instanceId });
+	}
+
+	/**
+	 * Writes the references of this instance, collects garbage and releases
+	 * the instance lock.
+	 */
+	void close() {
+		try {
+			flush();
+			collectGarbage();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Error closing shared bundle store.", e);
+		} finally {
+			try {
+				instanceLock.release();
+				instanceLockFile.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	/**
+	 * Adds a bundle file to the store, if it is not already there, and returns
+	 * a stream from which the framework can install or update the bundle.
+	 *
+	 * @param location
+	 *            The bundle location, recorded as a reference to the entry.
+	 * @param file
+	 *            The bundle JAR.
+	 */
+	InputStream open(String location, File file) throws IOException {
+		return open(location, file, null);
+	}
+
+	/**
+	 * @param knownDigest
+	 *            The SHA-1 digest of the file as a hex string if it is already
+	 *            known, or {@code null} to compute it.
+	 * @see #open(String, File)
+	 */
+	InputStream open(String location, File file, String knownDigest) throws IOException {
+		String digest = knownDigest != null ? knownDigest : digest(file);
+		File entry = getEntry(digest);
+
+		synchronized (JVM_LOCK) {
+			RandomAccessFile lockFile = new RandomAccessFile(new File(storeDir, STORE_LOCK), "rw");
+			try {
+				FileLock lock = lockFile.getChannel().lock();
+				try {
+					if(entry.isFile()) {
+						// Keep the entry out of garbage collection until our reference is recorded
+						entry.setLastModified(System.currentTimeMillis());
+					} else {
+						File temp = new File(storeDir, TEMP_PREFIX + instanceId + "-" + digest);
+						FileUtil.copyFile(file, temp);
+						temp.setLastModified(System.currentTimeMillis());
+						if(!temp.renameTo(entry)) {
+							temp.delete();
+							throw new IOException("Unable to add " + file + " to shared bundle store.");
+						}
+						log.log(Level.FINE, "Added {0} to shared bundle store as {1}.", new Object[] { file, entry.getName() });
+					}
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+
+		if(!digest.equals(references.put(location, digest)))
+			referencesChanged = true;
+		return openEntry(entry);
+	}
+
+	/**
+	 * Drops the reference held by a bundle location.
+	 */
+	void release(String location) {
+		if(references.remove(location) != null)
+			referencesChanged = true;
+	}
+
+	/**
+	 * Returns the digest of the entry a bundle location refers to, or
+	 * {@code null}.
+	 */
+	String getReference(String location) {
+		return references.get(location);
+	}
+
+	/**
+	 * Returns the entry file for a digest.
+	 */
+	File getEntry(String digest) {
+		return new File(storeDir, digest + ENTRY_SUFFIX);
+	}
+
+	/**
+	 * Writes the references of this instance if they have changed.
+	 */
+	void flush() throws IOException {
+		if(!referencesChanged)
+			return;
+
+		File refsFile = new File(refsDir, instanceId + REFS_SUFFIX);
+		File temp = new File(refsDir, instanceId + REFS_SUFFIX + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+		try {
+			writer.write(STORAGE_HEADER);
+			writer.write(storageDir.getPath());
+			writer.write('\n');
+			for (Map.Entry<String, String> reference : references.entrySet()) {
+				writer.write(reference.getValue());
+				writer.write(' ');
+				writer.write(reference.getKey());
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+		refsFile.delete();
+		if(!temp.renameTo(refsFile))
+			throw new IOException("Unable to write shared bundle store references " + refsFile);
+		referencesChanged = false;
+	}
+
+	/**
+	 * Removes the references of instances that are no longer running and whose
+	 * storage directory has been deleted, then deletes unreferenced entries
+	 * older than the grace period.
+	 */
+	void collectGarbage() throws IOException {
+		synchronized (JVM_LOCK) {
+			RandomAccessFile lockFile = new RandomAccessFile(new File(storeDir, STORE_LOCK), "rw");
+			try {
+				FileLock lock = lockFile.getChannel().lock();
+				try {
+					Set<String> referenced = new HashSet<String>();
+					File[] refFiles = refsDir.listFiles();
+					if(refFiles == null)
+						return;
+					for (File refFile : refFiles) {
+						String name = refFile.getName();
+						if(!name.endsWith(REFS_SUFFIX))
+							continue;
+						String owner = name.substring(0, name.length() - REFS_SUFFIX.length());
+						Map<String, String> ownerReferences = new HashMap<String, String>();
+						File ownerStorage = readReferences(refFile, ownerReferences);
+						// A record without a storage header is kept, as we cannot
+						// tell whether its bundles are still installed
+						if(owner.equals(instanceId) || ownerStorage == null || ownerStorage.exists() || isRunning(owner)) {
+							referenced.addAll(ownerReferences.values());
+						} else {
+							// The lock file is kept: another process may be about to
+							// lock it, and deleting it would let a second instance
+							// lock a new file of the same name
+							log.log(Level.FINE, "Removing shared bundle store references of instance {0}, whose storage {1} no longer exists.", new Object[] {
+									owner, ownerStorage });
+							refFile.delete();
+						}
+					}
+					// Our own references may not have been written yet
+					referenced.addAll(references.values());
+
+					long cutoff = System.currentTimeMillis() - GC_GRACE_PERIOD;
+					int deleted = 0;
+					File[] entries = storeDir.listFiles();
+					for (File entry : entries != null ? entries : new File[0]) {
+						String name = entry.getName();
+						boolean unreferencedEntry = name.endsWith(ENTRY_SUFFIX) && !referenced.contains(name.substring(0, name.length() - ENTRY_SUFFIX.length()));
+						boolean staleTemp = name.startsWith(TEMP_PREFIX);
+						if((unreferencedEntry || staleTemp) && entry.lastModified() < cutoff && entry.delete())
+							deleted++;
+					}
+					if(deleted > 0)
+						log.log(Level.INFO, "Removed {0} unreferenced entries from the shared bundle store.", deleted);
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+	}
+
+	private boolean isRunning(String owner) throws IOException {
+		File ownerLock = new File(refsDir, owner + LOCK_SUFFIX);
+		if(!ownerLock.isFile())
+			return false;
+		RandomAccessFile file = new RandomAccessFile(ownerLock, "rw");
+		try {
+			FileLock lock = file.getChannel().tryLock();
+			if(lock == null)
+				return true;
+			lock.release();
+			return false;
+		} catch (OverlappingFileLockException e) {
+			// Held by another instance in this JVM
+			return true;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Reads a references file into a map of bundle location to digest.
+	 *
+	 * @return The storage directory of the instance that wrote the file, or
+	 *         {@code null} if it was not recorded.
+	 */
+	private static File readReferences(File refsFile, Map<String, String> references) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(refsFile), "UTF-8"));
+		try {
+			File storage = null;
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith(STORAGE_HEADER)) {
+					storage = new File(line.substring(STORAGE_HEADER.length()));
+					continue;
+				}
+				int space = line.indexOf(' ');
+				if(space > 0)
+					references.put(line.substring(space + 1), line.substring(0, space));
+			}
+			return storage;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Opens an entry through a {@code reference:} URL if the framework has
+	 * registered a handler for that protocol, otherwise as a plain stream.
+	 */
+	private static InputStream openEntry(File entry) throws IOException {
+		if(referenceUrlSupported == null || referenceUrlSupported.booleanValue()) {
+			try {
+				InputStream stream = new URL("reference:" + entry.toURI().toURL()).openStream();
+				referenceUrlSupported = Boolean.TRUE;
+				return stream;
+			} catch (MalformedURLException e) {
+				referenceUrlSupported = Boolean.FALSE;
+			}
+		}
+		return new FileInputStream(entry);
+	}
+
+	static String digest(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 digest is not available.", e);
+		}
+
+		InputStream input = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = input.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		} finally {
+			input.close();
+		}
+
+		return toHex(digest.digest());
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+}
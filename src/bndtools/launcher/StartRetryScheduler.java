@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+
+import bndtools.launcher.BundleRegistry.BundleRecord;
+
+/**
+ * Schedules further start attempts for bundles that failed to start, with an
+ * exponential backoff and jitter per bundle, up to a maximum number of
+ * attempts. A retry is due when its backoff has elapsed; a service being
+ * registered or a bundle being started makes every waiting retry due once the
+ * base delay has passed since its last attempt, as either may provide what the
+ * bundle was missing. Retries run on their own timer thread, so the regular
+ * synchronization cycle does no extra work for them.
+ */
+class StartRetryScheduler {
+
+	private final Logger log;
+
+	private final BundleContext framework;
+	private final Runnable retryTask;
+	private final int maxAttempts;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final Random random = new Random();
+
+	private final Map<BundleRecord, Retry> pending = new HashMap<BundleRecord, Retry>();
+	private ScheduledExecutorService executor = null;
+	private ScheduledFuture<?> scheduled = null;
+	private long scheduledTime = Long.MAX_VALUE;
+
+	private final ServiceListener serviceListener = new ServiceListener() {
+		public void serviceChanged(ServiceEvent event) {
+			if(event.getType() == ServiceEvent.REGISTERED)
+				wake();
+		}
+	};
+	private final BundleListener bundleListener = new BundleListener() {
+		public void bundleChanged(BundleEvent event) {
+			if(event.getType() == BundleEvent.STARTED)
+				wake();
+		}
+	};
+
+	private static final class Retry {
+		int attempts = 1;
+		long lastAttempt;
+		long next;
+	}
+
+	/**
+	 * @param retryTask
+	 *            Called on the timer thread when retries are due; it should
+	 *            call {@link #takeDue()} and attempt the returned starts.
+	 * @param maxAttempts
+	 *            The maximum number of start attempts per bundle, including the
+	 *            first.
+	 * @param baseDelay
+	 *            The delay in milliseconds before the first retry, doubled for
+	 *            each further retry.
+	 * @param maxDelay
+	 *            The maximum delay in milliseconds between retries.
+	 * @param log
+	 *            The logger of the framework the bundles belong to.
+	 */
+	StartRetryScheduler(BundleContext framework, Runnable retryTask, int maxAttempts, long baseDelay, long maxDelay, Logger log) {
+		this.framework = framework;
+		this.log = log;
+		this.retryTask = retryTask;
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = Math.max(1L, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+	}
+
+	synchronized void start() {
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Bundle Start Retry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		framework.addServiceListener(serviceListener);
+		framework.addBundleListener(bundleListener);
+	}
+
+	void stop() {
+		try {
+			framework.removeServiceListener(serviceListener);
+			framework.removeBundleListener(bundleListener);
+		} catch (IllegalStateException e) {
+			// The framework has already stopped
+		}
+		synchronized (this) {
+			if(executor != null) {
+				executor.shutdownNow();
+				executor = null;
+			}
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Records a failed start attempt and schedules the next one, unless the
+	 * bundle has used up its attempts.
+	 *
+	 * @return Whether another attempt was scheduled.
+	 */
+	synchronized boolean failed(BundleRecord record) {
+		long now = now();
+		Retry retry = pending.get(record);
+		if(retry == null) {
+			retry = new Retry();
+			pending.put(record, retry);
+		} else {
+			retry.attempts++;
+		}
+		if(retry.attempts >= maxAttempts) {
+			pending.remove(record);
+			log.log(Level.SEVERE, "Bundle {0} failed to start after {1} attempt(s), giving up.", new Object[] { record.location, retry.attempts });
+			return false;
+		}
+
+		long delay = backoff(retry.attempts, baseDelay, maxDelay, random.nextDouble());
+		retry.lastAttempt = now;
+		retry.next = now + delay;
+		log.log(Level.INFO, "Retrying start of bundle {0} in {1}ms (attempt {2} of {3}).",
+				new Object[] { record.location, delay, retry.attempts + 1, maxAttempts });
+		schedule(retry.next);
+		return true;
+	}
+
+	/**
+	 * Returns the delay before the next attempt: the base delay doubled for
+	 * each attempt after the first, capped at the maximum delay, with half of
+	 * it randomised.
+	 *
+	 * @param attempts
+	 *            The number of attempts made so far, at least one.
+	 * @param jitter
+	 *            A random number from 0 (inclusive) to 1 (exclusive).
+	 */
+	static long backoff(int attempts, long baseDelay, long maxDelay, double jitter) {
+		long delay = baseDelay << Math.min(attempts - 1, 30);
+		if(delay <= 0 || delay > maxDelay)
+			delay = maxDelay;
+		return delay - delay / 2 + (long) (jitter * (delay / 2 + 1));
+	}
+
+	/**
+	 * Forgets a bundle that has started, or that will be started by the
+	 * regular synchronization because it was updated or uninstalled.
+	 */
+	synchronized void forget(BundleRecord record) {
+		pending.remove(record);
+	}
+
+	/**
+	 * Returns whether another start attempt is scheduled for a bundle.
+	 */
+	synchronized boolean isPending(BundleRecord record) {
+		return pending.containsKey(record);
+	}
+
+	/**
+	 * Returns the bundles whose retry is due. They stay scheduled until they
+	 * are passed to {@link #failed(BundleRecord)} or
+	 * {@link #forget(BundleRecord)}.
+	 */
+	synchronized List<BundleRecord> takeDue() {
+		long now = now();
+		List<BundleRecord> due = new ArrayList<BundleRecord>(pending.size());
+		for (Map.Entry<BundleRecord, Retry> entry : pending.entrySet()) {
+			if(entry.getValue().next <= now)
+				due.add(entry.getKey());
+		}
+		return due;
+	}
+
+	private synchronized void wake() {
+		if(pending.isEmpty())
+			return;
+		long earliest = Long.MAX_VALUE;
+		for (Retry retry : pending.values()) {
+			retry.next = Math.min(retry.next, retry.lastAttempt + baseDelay);
+			earliest = Math.min(earliest, retry.next);
+		}
+		schedule(earliest);
+	}
+
+	private void schedule(long time) {
+		if(executor == null)
+			return;
+		if(scheduled != null && !scheduled.isDone()) {
+			if(scheduledTime <= time)
+				return;
+			scheduled.cancel(false);
+		}
+		scheduledTime = time;
+		scheduled = executor.schedule(new Runnable() {
+			public void run() {
+				runRetries();
+			}
+		}, Math.max(0L, time - now()), TimeUnit.MILLISECONDS);
+	}
+
+	private void runRetries() {
+		synchronized (this) {
+			scheduled = null;
+			scheduledTime = Long.MAX_VALUE;
+		}
+		long notBefore = 0L;
+		try {
+			retryTask.run();
+		} catch (RuntimeException e) {
+			log.log(Level.WARNING, "Error retrying bundle starts.", e);
+			notBefore = now() + baseDelay;
+		}
+
+		// Schedule the next retry still waiting, if any
+		synchronized (this) {
+			long earliest = Long.MAX_VALUE;
+			for (Retry retry : pending.values())
+				earliest = Math.min(earliest, retry.next);
+			if(earliest != Long.MAX_VALUE)
+				schedule(Math.max(earliest, notBefore));
+		}
+	}
+
+	// Milliseconds on the same clock as the timer thread
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+
+/**
+ * Starts bundles with a timeout. When a timeout is configured, each start is
+ * run on a separate starter thread while the calling thread watches it, so
+ * bundle activators no longer run on the calling thread; this applies to
+ * static mode as well as dynamic mode. Without a timeout, bundles are started
+ * directly on the calling thread. A
+ * start that exceeds the timeout is logged with a stack dump of the starter
+ * thread and counted in the {@link LauncherMetrics}; then either the caller
+ * moves on, abandoning the stuck thread, or it keeps waiting.
+ */
+class StartWatchdog {
+
+	private final Logger log;
+
+	private final LauncherMetrics metrics;
+	private final BundleCosts costs;
+
+	private long timeout = 0L;
+	private boolean continueOnTimeout = true;
+	private ExecutorService executor = null;
+	private int threadCount = 0;
+
+	StartWatchdog(LauncherMetrics metrics, BundleCosts costs, Logger log) {
+		this.metrics = metrics;
+		this.costs = costs;
+		this.log = log;
+	}
+
+	/**
+	 * @param timeout
+	 *            The maximum time in milliseconds a bundle may take to start,
+	 *            or zero to start bundles directly on the calling thread.
+	 * @param continueOnTimeout
+	 *            Whether to give up on a bundle that has timed out and move on
+	 *            to the remaining bundles.
+	 */
+	void setTimeout(long timeout, boolean continueOnTimeout) {
+		this.timeout = timeout;
+		this.continueOnTimeout = continueOnTimeout;
+	}
+
+	void start(final Bundle bundle, final int startOption) throws BundleException {
+		if(timeout <= 0) {
+			measuredStart(bundle, startOption);
+			return;
+		}
+
+		// Set on the starter thread, read by the watching thread
+		final AtomicReference<Thread> starterThread = new AtomicReference<Thread>();
+		Future<Object> future = getExecutor().submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				starterThread.set(Thread.currentThread());
+				measuredStart(bundle, startOption);
+				return null;
+			}
+		});
+
+		try {
+			while(true) {
+				try {
+					future.get(timeout, TimeUnit.MILLISECONDS);
+					return;
+				} catch (TimeoutException e) {
+					metrics.startTimedOut();
+					logStuckStart(bundle, starterThread.get());
+					if(continueOnTimeout) {
+						// Abandon the stuck thread, later starts get a new one
+						executor.shutdown();
+						executor = null;
+						throw new BundleException(String.format("Bundle did not start within %dms.", timeout));
+					}
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof BundleException)
+				throw (BundleException) cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if(cause instanceof Error)
+				throw (Error) cause;
+			throw new BundleException("Error starting bundle.", cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BundleException("Interrupted while waiting for bundle to start.");
+		}
+	}
+
+	/**
+	 * Starts the bundle, attributing the cost on the thread that starts it.
+	 */
+	private void measuredStart(Bundle bundle, int startOption) throws BundleException {
+		BundleCosts.Probe probe = costs.begin();
+		try {
+			bundle.start(startOption);
+		} finally {
+			costs.end(probe, bundle, BundleCosts.OPERATION_START);
+		}
+	}
+
+	/**
+	 * Releases the starter thread. Called at the end of each batch of starts.
+	 */
+	void release() {
+		if(executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	private ExecutorService getExecutor() {
+		if(executor == null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Bundle Starter " + (++threadCount));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	private void logStuckStart(Bundle bundle, Thread thread) {
+		StringBuilder message = new StringBuilder();
+		message.append(String.format("Bundle %s (id %d) has not finished starting after %dms", bundle.getLocation(), bundle.getBundleId(), timeout));
+		if(bundle.getState() == Bundle.STARTING)
+			message.append(" and is stuck in STARTING");
+		message.append('.');
+		if(thread != null) {
+			message.append(String.format("%nStarter thread \"%s\" is %s:", thread.getName(), thread.getState()));
+			for (StackTraceElement element : thread.getStackTrace()) {
+				message.append(String.format("%n\tat %s", element));
+			}
+		}
+		log.log(Level.SEVERE, message.toString());
+	}
+}
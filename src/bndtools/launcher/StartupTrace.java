@@ -0,0 +1,366 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+/**
+ * Records the framework start and the install, resolve and start intervals of
+ * every bundle during startup, and computes the critical path to the launch
+ * being ready.
+ * <p>
+ * The launcher installs and starts bundles one after another, so the time it
+ * actually spends is the sum of the recorded intervals. The critical path is
+ * instead computed for a hypothetical parallel schedule, to show which
+ * bundles would still bound startup if the launcher ran work concurrently.
+ * In that schedule installs do not depend on each other, so only the longest
+ * one is on the critical path, and the resolve is a barrier between the
+ * installs and the starts. A bundle's start is assumed to depend on the
+ * starts of the bundles it imports packages from, as wired by
+ * {@link PackageAdmin} after resolving; wiring cycles are broken arbitrarily.
+ * This is only an assumption: the framework does not order starts by
+ * imports, and a bundle may also wait for services of bundles it does not
+ * import from. The slack of a bundle is how much longer it could take
+ * without lengthening that critical path. The result is logged and written
+ * as a Chrome trace JSON file, which can be opened in Perfetto or
+ * {@code chrome://tracing}.
+ */
+class StartupTrace {
+
+	static final String PHASE_FRAMEWORK = "framework";
+	static final String PHASE_INSTALL = "install";
+	static final String PHASE_RESOLVE = "resolve";
+	static final String PHASE_START = "start";
+
+	static final String MODEL = "hypothetical parallel schedule; starts assumed to wait for the bundles they import from";
+
+	private final Logger log;
+
+	private final File outputFile;
+	private final long origin = System.nanoTime();
+	private final List<Span> spans = new ArrayList<Span>();
+
+	static final class Span {
+		final String phase;
+		final String location;
+		final long bundleId;
+		final long start;
+		final long end;
+		final String thread;
+		long slack = -1;
+		boolean critical = false;
+
+		Span(String phase, String location, long bundleId, long start, long end, String thread) {
+			this.phase = phase;
+			this.location = location;
+			this.bundleId = bundleId;
+			this.start = start;
+			this.end = end;
+			this.thread = thread;
+		}
+
+		long duration() {
+			return end - start;
+		}
+	}
+
+	/**
+	 * @param outputFile
+	 *            The file to write the Chrome trace JSON to.
+	 * @param log
+	 *            The logger of the framework being traced.
+	 */
+	StartupTrace(File outputFile, Logger log) {
+		this.outputFile = outputFile;
+		this.log = log;
+	}
+
+	/**
+	 * Records an interval measured with {@link System#nanoTime()} on the
+	 * calling thread.
+	 *
+	 * @param location
+	 *            The bundle location, or {@code null} for the framework or a
+	 *            resolve of all bundles.
+	 */
+	synchronized void record(String phase, String location, long bundleId, long start, long end) {
+		spans.add(new Span(phase, location, bundleId, start, end, Thread.currentThread().getName()));
+	}
+
+	/**
+	 * Returns the recorded spans in the order they were recorded.
+	 */
+	synchronized List<Span> getSpans() {
+		return new ArrayList<Span>(spans);
+	}
+
+	/**
+	 * Computes the critical path once the launch is ready, logs it and writes
+	 * the trace file.
+	 */
+	synchronized void finish(BundleContext framework) {
+		long ready = System.nanoTime();
+		List<Span> path = analyse(getImports(framework));
+
+		long recordedNanos = 0L;
+		for (Span span : spans)
+			recordedNanos += span.duration();
+		long pathNanos = 0L;
+		StringBuilder message = new StringBuilder();
+		for (Span span : path) {
+			pathNanos += span.duration();
+			message.append(String.format(Locale.ROOT, "%n\t%.3fms %s %s", span.duration() / 1e6, span.phase, span.location != null ? span.location : ""));
+		}
+		log.log(Level.INFO, String.format(Locale.ROOT, "Startup took %.3fms, of which %.3fms in recorded phases run one after another. "
+				+ "In a hypothetical parallel schedule, where starts are assumed to wait only for the bundles they import from, "
+				+ "the critical path would be %.3fms:", (ready - origin) / 1e6, recordedNanos / 1e6, pathNanos / 1e6) + message);
+
+		try {
+			write(ready, recordedNanos, pathNanos);
+			log.log(Level.INFO, "Wrote startup trace to {0}.", outputFile);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Error writing startup trace to " + outputFile + ".", e);
+		}
+	}
+
+	/**
+	 * Returns a map from the id of each bundle to the ids of the bundles it
+	 * imports packages from.
+	 */
+	private Map<Long, Set<Long>> getImports(BundleContext framework) {
+		Map<Long, Set<Long>> imports = new HashMap<Long, Set<Long>>();
+		ServiceReference pkgAdmRef = framework.getServiceReference(PackageAdmin.class.getName());
+		if(pkgAdmRef == null)
+			return imports;
+		PackageAdmin pkgAdm = (PackageAdmin) framework.getService(pkgAdmRef);
+		if(pkgAdm == null)
+			return imports;
+		try {
+			Set<Long> seen = new HashSet<Long>();
+			for (Span span : spans) {
+				if(!PHASE_START.equals(span.phase) || !seen.add(span.bundleId))
+					continue;
+				Bundle exporter = framework.getBundle(span.bundleId);
+				ExportedPackage[] exports = exporter != null ? pkgAdm.getExportedPackages(exporter) : null;
+				if(exports == null)
+					continue;
+				for (ExportedPackage export : exports) {
+					Bundle[] importers = export.getImportingBundles();
+					if(importers == null)
+						continue;
+					for (Bundle importer : importers) {
+						if(importer.getBundleId() == span.bundleId)
+							continue;
+						Set<Long> exporters = imports.get(importer.getBundleId());
+						if(exporters == null) {
+							exporters = new HashSet<Long>();
+							imports.put(importer.getBundleId(), exporters);
+						}
+						exporters.add(span.bundleId);
+					}
+				}
+			}
+		} catch (IllegalStateException e) {
+			log.log(Level.FINE, "Unable to read package wiring for startup trace.", e);
+		} finally {
+			framework.ungetService(pkgAdmRef);
+		}
+		return imports;
+	}
+
+	/**
+	 * Sets the slack of each span and returns the critical path of the
+	 * hypothetical parallel schedule in order.
+	 *
+	 * @param imports
+	 *            A map from the id of each bundle to the ids of the bundles
+	 *            it imports packages from.
+	 */
+	List<Span> analyse(Map<Long, Set<Long>> imports) {
+		Span framework = null;
+		Span longestInstall = null;
+		List<Span> resolves = new ArrayList<Span>();
+		Map<Long, Span> starts = new LinkedHashMap<Long, Span>();
+		for (Span span : spans) {
+			if(PHASE_FRAMEWORK.equals(span.phase))
+				framework = span;
+			else if(PHASE_INSTALL.equals(span.phase) && (longestInstall == null || span.duration() > longestInstall.duration()))
+				longestInstall = span;
+			else if(PHASE_RESOLVE.equals(span.phase))
+				resolves.add(span);
+			else if(PHASE_START.equals(span.phase))
+				starts.put(span.bundleId, span);
+		}
+
+		// Installs can overlap each other, so each has slack up to the longest
+		for (Span span : spans) {
+			if(PHASE_INSTALL.equals(span.phase))
+				span.slack = longestInstall.duration() - span.duration();
+		}
+
+		// Earliest finish of each start, in dependency order
+		List<Span> order = new ArrayList<Span>(starts.size());
+		Set<Long> visited = new HashSet<Long>();
+		for (Long id : starts.keySet())
+			visit(id, starts, imports, visited, order);
+		Map<Span, Long> earliestFinish = new HashMap<Span, Long>();
+		Map<Span, Span> criticalDependency = new HashMap<Span, Span>();
+		Map<Span, List<Span>> dependents = new HashMap<Span, List<Span>>();
+		long makespan = 0L;
+		Span last = null;
+		for (Span span : order) {
+			long begin = 0L;
+			Set<Long> exporters = imports.get(span.bundleId);
+			if(exporters != null) {
+				for (Long exporterId : exporters) {
+					Span exporter = starts.get(exporterId);
+					Long finish = exporter != null ? earliestFinish.get(exporter) : null;
+					if(finish == null)
+						continue; // Not started, or a broken cycle
+					List<Span> list = dependents.get(exporter);
+					if(list == null) {
+						list = new LinkedList<Span>();
+						dependents.put(exporter, list);
+					}
+					list.add(span);
+					if(finish.longValue() > begin) {
+						begin = finish.longValue();
+						criticalDependency.put(span, exporter);
+					}
+				}
+			}
+			long finish = begin + span.duration();
+			earliestFinish.put(span, finish);
+			if(last == null || finish > makespan) {
+				makespan = finish;
+				last = span;
+			}
+		}
+
+		// Latest finish of each start, in reverse dependency order
+		Map<Span, Long> latestFinish = new HashMap<Span, Long>();
+		for (int i = order.size() - 1; i >= 0; i--) {
+			Span span = order.get(i);
+			long latest = makespan;
+			List<Span> list = dependents.get(span);
+			if(list != null) {
+				for (Span dependent : list)
+					latest = Math.min(latest, latestFinish.get(dependent).longValue() - dependent.duration());
+			}
+			latestFinish.put(span, latest);
+			span.slack = latest - earliestFinish.get(span).longValue();
+		}
+
+		// Assemble the critical path
+		List<Span> path = new LinkedList<Span>();
+		for (Span span = last; span != null; span = criticalDependency.get(span))
+			path.add(0, span);
+		Collections.reverse(resolves);
+		for (Span resolve : resolves)
+			path.add(0, resolve);
+		if(longestInstall != null)
+			path.add(0, longestInstall);
+		if(framework != null)
+			path.add(0, framework);
+		for (Span span : path)
+			span.critical = true;
+		return path;
+	}
+
+	private static void visit(Long id, Map<Long, Span> starts, Map<Long, Set<Long>> imports, Set<Long> visited, List<Span> order) {
+		if(!visited.add(id))
+			return;
+		Set<Long> exporters = imports.get(id);
+		if(exporters != null) {
+			for (Long exporterId : exporters) {
+				if(starts.containsKey(exporterId))
+					visit(exporterId, starts, imports, visited, order);
+			}
+		}
+		order.add(starts.get(id));
+	}
+
+	private void write(long ready, long recordedNanos, long pathNanos) throws IOException {
+		File parent = outputFile.getAbsoluteFile().getParentFile();
+		if(parent != null)
+			parent.mkdirs();
+
+		Map<String, Integer> threadIds = new LinkedHashMap<String, Integer>();
+		for (Span span : spans) {
+			if(!threadIds.containsKey(span.thread))
+				threadIds.put(span.thread, Integer.valueOf(threadIds.size() + 1));
+		}
+
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"));
+		try {
+			writer.write("{\"displayTimeUnit\":\"ms\",\"otherData\":{");
+			writer.write(String.format(Locale.ROOT, "\"startup_ms\":\"%.3f\",\"recorded_serial_ms\":\"%.3f\",\"parallel_critical_path_ms\":\"%.3f\",\"critical_path_model\":%s",
+					(ready - origin) / 1e6, recordedNanos / 1e6, pathNanos / 1e6, quote(MODEL)));
+			writer.write("},\"traceEvents\":[\n");
+			writer.write("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"args\":{\"name\":\"bndtools launcher\"}}");
+			for (Map.Entry<String, Integer> thread : threadIds.entrySet()) {
+				writer.write(String.format(Locale.ROOT, ",%n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":%s}}", thread.getValue(),
+						quote(thread.getKey())));
+			}
+			for (Span span : spans) {
+				String name = span.location != null ? span.phase + " " + span.location : span.phase;
+				writer.write(String.format(Locale.ROOT, ",%n{\"name\":%s,\"cat\":\"%s\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f,\"args\":{", quote(name),
+						span.phase, threadIds.get(span.thread), (span.start - origin) / 1e3, span.duration() / 1e3));
+				writer.write("\"critical\":" + span.critical);
+				if(span.location != null)
+					writer.write(",\"bundle\":" + quote(span.location) + ",\"id\":" + span.bundleId);
+				if(span.slack >= 0)
+					writer.write(String.format(Locale.ROOT, ",\"slack_ms\":%.3f", span.slack / 1e6));
+				writer.write("}}");
+			}
+			writer.write("\n]}\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static String quote(String value) {
+		StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\')
+				builder.append('\\').append(c);
+			else if(c < 0x20)
+				builder.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+			else
+				builder.append(c);
+		}
+		return builder.append('"').toString();
+	}
+}
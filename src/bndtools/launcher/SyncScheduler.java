@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Synchronizes the bundles of several hosted frameworks from a shared timer
+ * thread, instead of each {@link BundleInstaller} running its own.
+ * <p>
+ * Every cycle, the timer hands each installer that is not still synchronizing
+ * to a shared pool, so a synchronization stuck in one framework, for example
+ * in a bundle activator, does not hold up the others. The pool only grows
+ * beyond one thread while synchronizations overlap, and idle threads expire.
+ * An installer that is still synchronizing is skipped, and reported to its
+ * framework's logger once it has taken longer than {@link #STALL_TIMEOUT}.
+ */
+class SyncScheduler implements Runnable {
+
+	// The time to wait between synchronization cycles
+	private static final long INTERVAL = 2000;
+	// How long a synchronization may run before it is reported as stalled
+	static final long STALL_TIMEOUT = 60000;
+
+	private final Logger log = Logger.getLogger("bndtools.launcher");
+
+	private final List<BundleInstaller> installers = new ArrayList<BundleInstaller>();
+	// The start time of each synchronization in progress
+	private final Map<BundleInstaller, Long> running = new HashMap<BundleInstaller, Long>();
+	// Installers reported as stalled whose synchronization has not finished
+	private final Set<BundleInstaller> stalled = new HashSet<BundleInstaller>();
+	private Thread thread = null;
+	private ExecutorService executor = null;
+
+	synchronized void start() {
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Bundle Sync " + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		thread = new Thread(this, "Bundle Sync Scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void stop() throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			thread = this.thread;
+			this.thread = null;
+		}
+		if(thread != null) {
+			thread.interrupt();
+			thread.join();
+		}
+
+		// No more synchronizations are scheduled once the timer has stopped
+		ExecutorService executor;
+		synchronized (this) {
+			executor = this.executor;
+			this.executor = null;
+		}
+		if(executor != null)
+			executor.shutdownNow();
+	}
+
+	synchronized void add(BundleInstaller installer) {
+		installers.add(installer);
+	}
+
+	/**
+	 * Stops synchronizing an installer. If the installer is being synchronized,
+	 * waits for that to finish so that its framework can be shut down safely.
+	 */
+	void remove(BundleInstaller installer) {
+		synchronized (this) {
+			installers.remove(installer);
+		}
+		synchronized (installer) {
+			// Wait for a synchronization in progress
+		}
+	}
+
+	private synchronized boolean isScheduled(BundleInstaller installer) {
+		return installers.contains(installer);
+	}
+
+	public void run() {
+		log.info("Bundle sync scheduler thread starting...");
+
+		try {
+			while(!Thread.interrupted()) {
+				schedule();
+
+				// Sleep until next cycle
+				Thread.sleep(INTERVAL);
+			}
+		} catch (InterruptedException e) {
+			// Allow thread to end
+		}
+		log.info("Bundle sync scheduler thread terminating.");
+	}
+
+	/**
+	 * Hands each installer that is not synchronizing to the pool, and reports
+	 * those that have been synchronizing for too long.
+	 */
+	private synchronized void schedule() {
+		long now = System.currentTimeMillis();
+		for (final BundleInstaller installer : installers) {
+			Long started = running.get(installer);
+			if(started == null) {
+				running.put(installer, Long.valueOf(now));
+				executor.execute(new Runnable() {
+					public void run() {
+						synchronize(installer);
+					}
+				});
+			} else if(now - started.longValue() >= STALL_TIMEOUT && stalled.add(installer)) {
+				installer.getLogger().log(Level.WARNING, "Bundle synchronization has been running for {0} ms; the other frameworks are still synchronized.",
+						now - started.longValue());
+			}
+		}
+	}
+
+	private void synchronize(BundleInstaller installer) {
+		try {
+			synchronized (installer) {
+				if(isScheduled(installer))
+					installer.synchronizeBundles();
+			}
+		} catch (RuntimeException e) {
+			installer.getLogger().log(Level.SEVERE, "Error synchronizing bundles.", e);
+		} finally {
+			synchronized (this) {
+				running.remove(installer);
+				if(stalled.remove(installer))
+					installer.getLogger().info("Stalled bundle synchronization has finished.");
+			}
+		}
+	}
+}
@@ -0,0 +1,345 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+
+import bndtools.launcher.BundleInstaller.BundleOperationException;
+import bndtools.launcher.BundleRegistry.BundleRecord;
+
+/**
+ * Records the changes made by one synchronization batch so that they can be
+ * rolled back to the last known good bundle set.
+ * <p>
+ * Copies of bundle content are made lazily: just before a bundle is updated or
+ * uninstalled, its installed content is kept in a backup directory, keyed by
+ * location, unless a copy is already there. The copy is taken from the bundle
+ * file if it has not changed since the bundle was installed, and is otherwise
+ * rebuilt from the bundle's entries in the framework. When a batch is
+ * committed the copies of the bundles it changed are discarded, since they no
+ * longer hold the installed content. One instance is reused for all batches of
+ * a {@link BundleInstaller}.
+ * <p>
+ * With a shared bundle store, a rollback keeps the references of this instance
+ * in step with the installed bundles: bundles whose installation is rolled
+ * back release their reference, and restored bundles are installed or updated
+ * from a store entry for their last known good copy.
+ */
+class SyncTransaction {
+
+	private static final String BACKUP_SUFFIX = ".jar";
+
+	private final Logger log;
+
+	private final File backupDir;
+
+	private final List<BundleRecord> installed = new ArrayList<BundleRecord>();
+	private final List<BundleRecord> updated = new ArrayList<BundleRecord>();
+	private final List<BundleRecord> uninstalled = new ArrayList<BundleRecord>();
+	private final List<BundleRecord> deleted = new ArrayList<BundleRecord>();
+	private final List<BundleRecord> startsAttempted = new ArrayList<BundleRecord>();
+	private boolean committed = false;
+
+	/**
+	 * @param backupDir
+	 *            The directory holding the last known good copies. Copies left
+	 *            by an earlier launch may not match the installed bundles, so
+	 *            they are removed.
+	 */
+	SyncTransaction(File backupDir, Logger log) {
+		this.backupDir = backupDir;
+		this.log = log;
+		File[] stale = backupDir.listFiles();
+		if(stale != null) {
+			for (File file : stale) {
+				if(file.getName().endsWith(BACKUP_SUFFIX))
+					file.delete();
+			}
+		}
+	}
+
+	void begin() {
+		installed.clear();
+		updated.clear();
+		uninstalled.clear();
+		deleted.clear();
+		startsAttempted.clear();
+	}
+
+	/**
+	 * Returns whether the batch changed any bundles.
+	 */
+	boolean hasChanges() {
+		return !installed.isEmpty() || !updated.isEmpty() || !uninstalled.isEmpty();
+	}
+
+	/**
+	 * Returns whether a batch has been committed, so that there is a last
+	 * known good bundle set to roll back to.
+	 */
+	boolean hasCommitted() {
+		return committed;
+	}
+
+	void installed(BundleRecord record) {
+		installed.add(record);
+	}
+
+	/**
+	 * Records an update, keeping a copy of the installed content before the
+	 * bundle is updated.
+	 */
+	void updating(BundleRecord record) {
+		updated.add(record);
+		keepLastKnownGood(record);
+	}
+
+	/**
+	 * Keeps a copy of the installed content of a bundle that is about to be
+	 * uninstalled because it was removed from the run bundles.
+	 */
+	void uninstalling(BundleRecord record) {
+		keepLastKnownGood(record);
+	}
+
+	/**
+	 * Records a bundle uninstalled because it was removed from the run bundles.
+	 */
+	void uninstalled(BundleRecord record) {
+		uninstalled.add(record);
+	}
+
+	/**
+	 * Records a bundle uninstalled because its bundle file was deleted. Such
+	 * bundles are not reinstated by a rollback.
+	 */
+	void deleted(BundleRecord record) {
+		deleted.add(record);
+	}
+
+	void startAttempted(BundleRecord record) {
+		startsAttempted.add(record);
+	}
+
+	List<BundleRecord> getStartsAttempted() {
+		return startsAttempted;
+	}
+
+	/**
+	 * Makes the bundles installed by this batch the last known good set.
+	 */
+	void commit() {
+		committed = true;
+		for (BundleRecord record : updated)
+			getBackupFile(record.location).delete();
+		for (BundleRecord record : uninstalled)
+			getBackupFile(record.location).delete();
+		for (BundleRecord record : deleted)
+			getBackupFile(record.location).delete();
+	}
+
+	/**
+	 * Reverts the changes made by this batch: bundles installed by the batch
+	 * are uninstalled, updated bundles are updated again from their last known
+	 * good copies, and bundles removed from the run bundles are reinstalled.
+	 *
+	 * @param framework
+	 *            The framework bundle context.
+	 * @param registry
+	 *            The installer's registry of managed bundles, which is kept up
+	 *            to date.
+	 * @param sharedStore
+	 *            The shared bundle store the bundles are installed from, or
+	 *            {@code null}.
+	 * @param errors
+	 *            Receives any errors that prevented a change from being
+	 *            reverted.
+	 * @return The bundles whose wiring must be refreshed.
+	 */
+	List<Bundle> rollback(BundleContext framework, BundleRegistry registry, SharedBundleStore sharedStore,
+			Collection<? super BundleOperationException> errors) {
+		List<Bundle> toRefresh = new ArrayList<Bundle>(installed.size() + updated.size() + uninstalled.size());
+
+		for (BundleRecord record : installed) {
+			registry.remove(record);
+			if(sharedStore != null)
+				sharedStore.release(record.location);
+			try {
+				log.log(Level.FINE, "Rolling back installation of bundle {0}.", record.location);
+				if(record.bundle.getState() != Bundle.UNINSTALLED)
+					record.bundle.uninstall();
+				toRefresh.add(record.bundle);
+			} catch (BundleException e) {
+				errors.add(new BundleOperationException(record.location, "Error rolling back bundle installation.", e));
+			}
+		}
+
+		for (BundleRecord record : updated) {
+			try {
+				log.log(Level.FINE, "Rolling back update of bundle {0}.", record.location);
+				record.bundle.update(openBackup(record.location, sharedStore));
+				toRefresh.add(record.bundle);
+			} catch (FileNotFoundException e) {
+				errors.add(new BundleOperationException(record.location, "No last known good copy to roll back bundle update.", e));
+			} catch (BundleException e) {
+				errors.add(new BundleOperationException(record.location, "Error rolling back bundle update.", e));
+			} finally {
+				record.updated();
+			}
+		}
+
+		for (BundleRecord record : uninstalled) {
+			try {
+				log.log(Level.FINE, "Rolling back uninstallation of bundle {0}.", record.location);
+				Bundle reinstalled = framework.installBundle(record.location, openBackup(record.location, sharedStore));
+				registry.add(reinstalled, record.location, record.file, record.startOption);
+				toRefresh.add(record.bundle);
+			} catch (FileNotFoundException e) {
+				errors.add(new BundleOperationException(record.location, "No last known good copy to roll back bundle uninstallation.", e));
+			} catch (BundleException e) {
+				errors.add(new BundleOperationException(record.location, "Error rolling back bundle uninstallation.", e));
+			}
+		}
+
+		return toRefresh;
+	}
+
+	/**
+	 * Opens the last known good copy of a bundle, through the shared bundle
+	 * store if there is one so that the store records the reference.
+	 */
+	private InputStream openBackup(String location, SharedBundleStore sharedStore) throws FileNotFoundException {
+		File backup = getBackupFile(location);
+		if(sharedStore != null && backup.isFile()) {
+			try {
+				return sharedStore.open(location, backup);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Unable to use the shared bundle store to roll back " + location + ", using the last known good copy directly.", e);
+				// A stale reference to the failed content must not be kept
+				sharedStore.release(location);
+			}
+		}
+		return new FileInputStream(backup);
+	}
+
+	/**
+	 * Copies the installed content of a bundle to its backup file, unless
+	 * there already is one.
+	 */
+	private void keepLastKnownGood(BundleRecord record) {
+		File backup = getBackupFile(record.location);
+		if(backup.isFile())
+			return;
+		try {
+			long fileLastModified = record.file.lastModified();
+			if(record.file.isFile() && fileLastModified != 0L && fileLastModified <= record.lastModified)
+				FileUtil.copyFile(record.file, backup);
+			else
+				exportBundle(record.bundle, backup);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to keep a last known good copy of bundle " + record.location, e);
+			backup.delete();
+		}
+	}
+
+	/**
+	 * Writes the entries of an installed bundle to a JAR file, manifest first.
+	 */
+	static void exportBundle(Bundle bundle, File file) throws IOException {
+		File parent = file.getParentFile();
+		if(parent != null && !parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Unable to create directory " + parent);
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+		try {
+			URL manifest = bundle.getEntry(JarFile.MANIFEST_NAME);
+			if(manifest != null)
+				exportEntry(out, JarFile.MANIFEST_NAME, manifest);
+			exportEntries(bundle, "/", out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void exportEntries(Bundle bundle, String path, JarOutputStream out) throws IOException {
+		Enumeration<?> paths = bundle.getEntryPaths(path);
+		if(paths == null)
+			return;
+		while(paths.hasMoreElements()) {
+			String entry = (String) paths.nextElement();
+			if(entry.startsWith("/"))
+				entry = entry.substring(1);
+			if(entry.endsWith("/")) {
+				out.putNextEntry(new JarEntry(entry));
+				out.closeEntry();
+				exportEntries(bundle, entry, out);
+			} else if(!JarFile.MANIFEST_NAME.equals(entry)) {
+				URL url = bundle.getEntry(entry);
+				if(url != null)
+					exportEntry(out, entry, url);
+			}
+		}
+	}
+
+	private static void exportEntry(JarOutputStream out, String name, URL url) throws IOException {
+		out.putNextEntry(new JarEntry(name));
+		InputStream in = url.openStream();
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		out.closeEntry();
+	}
+
+	private File getBackupFile(String location) {
+		return new File(backupDir, encode(location) + BACKUP_SUFFIX);
+	}
+
+	private static String encode(String location) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			StringBuilder builder = new StringBuilder();
+			for (byte b : digest.digest(location.getBytes("UTF-8"))) {
+				builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 digest is not available.", e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
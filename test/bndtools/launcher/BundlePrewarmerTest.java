@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BundlePrewarmerTest {
+
+	private static final int BUNDLES = 20;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Properties props = new Properties();
+
+	@Test
+	public void readsEveryRunBundle() throws Exception {
+		long total = writeRunBundles();
+		BundlePrewarmer prewarmer = new BundlePrewarmer(4, Long.MAX_VALUE);
+		prewarmer.start(props);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while(prewarmer.getFilesRead() < BUNDLES && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		long now = System.nanoTime();
+		prewarmer.awaitCompletion(now, now);
+
+		assertEquals(BUNDLES, prewarmer.getFilesRead());
+		assertEquals(total, prewarmer.getBytesRead());
+	}
+
+	@Test
+	public void waitIsBoundedAndStopsAtTheByteLimit() throws Exception {
+		writeRunBundles();
+		BundlePrewarmer prewarmer = new BundlePrewarmer(2, 1);
+		prewarmer.start(props);
+
+		long waitStart = System.currentTimeMillis();
+		long now = System.nanoTime();
+		prewarmer.awaitCompletion(now, now);
+
+		assertTrue(System.currentTimeMillis() - waitStart < BundlePrewarmer.AWAIT_TIMEOUT + 1000);
+		// Each reader stops after the buffer that crosses the limit
+		assertTrue(prewarmer.getBytesRead() <= 2 * 64 * 1024);
+	}
+
+	private long writeRunBundles() throws IOException {
+		StringBuilder runBundles = new StringBuilder();
+		long total = 0L;
+		for (int i = 0; i < BUNDLES; i++) {
+			File bundle = FakeFramework.writeBundle(new File(folder.getRoot(), "b" + i + ".jar"), FakeFramework.headers("b" + i), "data.txt", "b" + i);
+			total += bundle.length();
+			if(runBundles.length() > 0)
+				runBundles.append(',');
+			runBundles.append(bundle.getPath());
+		}
+		props.setProperty(LauncherConstants.PROP_RUN_BUNDLES, runBundles.toString());
+		return total;
+	}
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import bndtools.launcher.BundleRegistry.BundleRecord;
+
+public class BundleRegistryTest {
+
+	@Test
+	public void findsRecordsByIdAndLocation() {
+		BundleRegistry registry = new BundleRegistry();
+		BundleRecord record = add(registry, 5);
+
+		assertSame(record, registry.get(5));
+		assertSame(record, registry.get(location(5)));
+		assertTrue(registry.contains(location(5)));
+		assertNull(registry.get(6));
+		assertEquals(1, registry.size());
+	}
+
+	@Test
+	public void removalKeepsCollidingIdsReachable() {
+		BundleRegistry registry = new BundleRegistry();
+		int mask = registry.capacity() - 1;
+
+		// Find ids that share a home slot, so that they are stored in a run
+		long[] colliding = new long[4];
+		int found = 0;
+		int home = -1;
+		for (long id = 1; found < colliding.length; id++) {
+			int slot = homeSlot(registry, id, mask);
+			if(home < 0)
+				home = slot;
+			if(slot == home)
+				colliding[found++] = id;
+		}
+		for (long id : colliding)
+			add(registry, id);
+
+		// Removing the head of the run must shift the others back
+		registry.remove(registry.get(colliding[0]));
+		for (int i = 1; i < colliding.length; i++)
+			assertEquals(colliding[i], registry.get(colliding[i]).id);
+		assertNull(registry.get(colliding[0]));
+
+		// Removing from the middle of the run
+		registry.remove(registry.get(colliding[2]));
+		assertEquals(colliding[1], registry.get(colliding[1]).id);
+		assertEquals(colliding[3], registry.get(colliding[3]).id);
+		assertEquals(2, registry.size());
+	}
+
+	@Test
+	public void randomOperationsMatchAMap() {
+		BundleRegistry registry = new BundleRegistry();
+		Map<Long, BundleRecord> expected = new HashMap<Long, BundleRecord>();
+		Random random = new Random(42);
+
+		for (int i = 0; i < 20000; i++) {
+			long id = random.nextInt(500);
+			if(random.nextInt(3) == 0) {
+				BundleRecord record = expected.remove(id);
+				if(record != null)
+					registry.remove(record);
+			} else if(!expected.containsKey(id)) {
+				expected.put(id, add(registry, id));
+			}
+
+			if(i % 500 == 0)
+				assertMatches(expected, registry);
+		}
+		assertMatches(expected, registry);
+	}
+
+	@Test
+	public void growsAndKeepsEveryRecord() {
+		BundleRegistry registry = new BundleRegistry();
+		int initialCapacity = registry.capacity();
+		for (long id = 1; id <= initialCapacity * 4; id++)
+			add(registry, id);
+
+		assertTrue(registry.capacity() > initialCapacity);
+		for (long id = 1; id <= initialCapacity * 4; id++)
+			assertEquals(id, registry.get(id).id);
+	}
+
+	@Test
+	public void addingALocationAgainReplacesItsRecord() {
+		BundleRegistry registry = new BundleRegistry();
+		BundleRecord first = registry.add(bundle(1), location(1), new File("a.jar"), 0);
+		BundleRecord second = registry.add(bundle(2), location(1), new File("a.jar"), 0);
+
+		assertSame(second, registry.get(location(1)));
+		assertNull(registry.get(1));
+		assertEquals(1, registry.size());
+
+		// A stale record must not remove its replacement
+		registry.remove(first);
+		assertSame(second, registry.get(2));
+	}
+
+	@Test
+	public void fragmentHeaderIsReadOnce() {
+		final int[] headerReads = new int[1];
+		Bundle bundle = FakeFramework.proxy(Bundle.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if("getBundleId".equals(method.getName()))
+					return Long.valueOf(1);
+				if("getHeaders".equals(method.getName())) {
+					headerReads[0]++;
+					return new Hashtable<String, String>();
+				}
+				return FakeFramework.defaultValue(method);
+			}
+		});
+		BundleRecord record = new BundleRegistry().add(bundle, location(1), new File("a.jar"), 0);
+
+		assertFalse(record.isFragment());
+		assertFalse(record.isFragment());
+		assertEquals(1, headerReads[0]);
+
+		record.updated();
+		assertFalse(record.isFragment());
+		assertEquals(2, headerReads[0]);
+	}
+
+	private static void assertMatches(Map<Long, BundleRecord> expected, BundleRegistry registry) {
+		assertEquals(expected.size(), registry.size());
+		for (Map.Entry<Long, BundleRecord> entry : expected.entrySet()) {
+			assertSame(entry.getValue(), registry.get(entry.getKey().longValue()));
+			assertSame(entry.getValue(), registry.get(location(entry.getKey().longValue())));
+		}
+
+		// Iteration by slot visits each record exactly once
+		Set<Long> seen = new HashSet<Long>();
+		for (int i = 0; i < registry.capacity(); i++) {
+			BundleRecord record = registry.slot(i);
+			if(record != null)
+				assertTrue(seen.add(record.id));
+		}
+		assertEquals(expected.keySet(), seen);
+	}
+
+	/**
+	 * Finds the slot an id is stored in when it is the only entry.
+	 */
+	private static int homeSlot(BundleRegistry registry, long id, int mask) {
+		BundleRegistry probe = new BundleRegistry();
+		add(probe, id);
+		for (int i = 0; i < probe.capacity(); i++) {
+			if(probe.slot(i) != null)
+				return i & mask;
+		}
+		throw new AssertionError();
+	}
+
+	private static BundleRecord add(BundleRegistry registry, long id) {
+		return registry.add(bundle(id), location(id), new File("b" + id + ".jar"), 0);
+	}
+
+	private static String location(long id) {
+		return "file:b" + id + ".jar";
+	}
+
+	private static Bundle bundle(final long id) {
+		return FakeFramework.proxy(Bundle.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if("getBundleId".equals(method.getName()))
+					return Long.valueOf(id);
+				return FakeFramework.defaultValue(method);
+			}
+		});
+	}
+}
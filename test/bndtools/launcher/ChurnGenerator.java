@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a synthetic run list of bundle JARs in a directory, and file
+ * system churn against it: bundle files rewritten in place, and bundles
+ * removed from and added to the run list.
+ */
+class ChurnGenerator {
+
+	// Out of ten changes, how many update a bundle file; of the rest, half
+	// remove a bundle and half add one
+	private static final int UPDATE_WEIGHT = 8;
+
+	private final File dir;
+	private final File propsFile;
+	private final Random random;
+	private final List<File> runBundles = new ArrayList<File>();
+	private int nextBundle = 0;
+	private int nextRevision = 0;
+	private long propsLastModified = 0L;
+
+	ChurnGenerator(File dir, long seed) {
+		this.dir = dir;
+		this.propsFile = new File(dir, "launch.properties");
+		this.random = new Random(seed);
+	}
+
+	File getPropsFile() {
+		return propsFile;
+	}
+
+	int getRunBundleCount() {
+		return runBundles.size();
+	}
+
+	/**
+	 * Writes the specified number of bundles and a run list holding them.
+	 */
+	void createRunList(int bundles) throws IOException {
+		for (int i = 0; i < bundles; i++)
+			runBundles.add(writeBundle(newBundleFile()));
+		writeRunList();
+	}
+
+	/**
+	 * Changes a fraction of the run bundles, each of which is either updated,
+	 * removed from the run list or joined by a new bundle. The files are
+	 * given the current time, so a synchronization picks them up once they
+	 * are old enough.
+	 *
+	 * @return The number of bundles to install, update or uninstall.
+	 */
+	int churn(double rate) throws IOException {
+		int count = (int) Math.round(runBundles.size() * rate);
+		if(count == 0)
+			return 0;
+
+		// Distinct bundles, so that every change is seen separately
+		List<File> chosen = new ArrayList<File>(runBundles);
+		Collections.shuffle(chosen, random);
+		chosen = chosen.subList(0, count);
+
+		boolean runListChanged = false;
+		for (File file : chosen) {
+			int kind = random.nextInt(10);
+			if(kind < UPDATE_WEIGHT || runBundles.size() <= 1) {
+				writeBundle(file);
+			} else if(kind % 2 == 0) {
+				runBundles.remove(file);
+				runListChanged = true;
+			} else {
+				runBundles.add(writeBundle(newBundleFile()));
+				runListChanged = true;
+			}
+		}
+		if(runListChanged)
+			writeRunList();
+		return count;
+	}
+
+	private File newBundleFile() {
+		return new File(dir, "bundle" + (nextBundle++) + ".jar");
+	}
+
+	private File writeBundle(File file) throws IOException {
+		String name = file.getName();
+		FakeFramework.writeBundle(file, FakeFramework.headers(name.substring(0, name.length() - ".jar".length())), "data.txt",
+				Integer.toString(nextRevision++));
+		file.setLastModified(System.currentTimeMillis());
+		return file;
+	}
+
+	private void writeRunList() throws IOException {
+		// Each write must be seen as a change, even within the same millisecond
+		propsLastModified = Math.max(propsLastModified + 1, System.currentTimeMillis());
+		FakeFramework.writeRunBundles(propsFile, propsLastModified, runBundles.toArray(new File[runBundles.size()]));
+	}
+}
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ControlServerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void newTokenFileIsOwnerOnlyAndReused() throws Exception {
+		File dir = new File(folder.getRoot(), "launch");
+		File tokenFile = new File(dir, "control.token");
+
+		String token = ControlServer.loadToken(tokenFile);
+
+		assertEquals(32, token.length());
+		assertEquals(token, ControlServer.loadToken(tokenFile));
+		// The temporary directory is gone
+		assertArrayEquals(new String[] { "control.token" }, dir.list());
+		assumeTrue(Files.getFileStore(tokenFile.toPath()).supportsFileAttributeView("posix"));
+		Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(tokenFile.toPath());
+		assertEquals(PosixFilePermissions.fromString("rw-------"), permissions);
+	}
+
+	@Test
+	public void existingTokenFileIsRestricted() throws Exception {
+		File tokenFile = folder.newFile("control.token");
+		Files.write(tokenFile.toPath(), "secret\n".getBytes("UTF-8"));
+		assumeTrue(Files.getFileStore(tokenFile.toPath()).supportsFileAttributeView("posix"));
+		Files.setPosixFilePermissions(tokenFile.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+
+		assertEquals("secret", ControlServer.loadToken(tokenFile));
+		assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(tokenFile.toPath()));
+	}
+}
@@ -0,0 +1,640 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+/**
+ * An in-memory framework for tests, exposing a {@link BundleContext} and a
+ * {@link PackageAdmin} through dynamic proxies. Only the methods used by the
+ * launcher are implemented; others return {@code null}, zero or
+ * {@code false}.
+ * <p>
+ * Bundle content is read from JAR files or directories. A bundle whose
+ * manifest has a {@link #FAIL_START} or {@link #FAIL_RESOLVE} header fails to
+ * start or resolve, as does one whose location is in {@link #failingStarts}. Install, resolve, start and refresh can be given a latency
+ * to model a slow framework. An update of a bundle with an
+ * {@code Export-Package} header leaves its exports pending removal until the
+ * next package refresh, as a real framework does.
+ */
+class FakeFramework {
+
+	static final String FAIL_START = "Fail-Start";
+	static final String FAIL_RESOLVE = "Fail-Resolve";
+
+	long installMillis = 0L;
+	long resolveMillis = 0L;
+	long startMillis = 0L;
+	long refreshMillis = 0L;
+	// Whether refreshPackages first fires an event for someone else's refresh
+	boolean foreignRefreshEvents = false;
+	// Locations of bundles whose start fails, whatever their content
+	final Set<String> failingStarts = Collections.synchronizedSet(new HashSet<String>());
+
+	final AtomicInteger installs = new AtomicInteger();
+	final AtomicInteger updates = new AtomicInteger();
+	final AtomicInteger uninstalls = new AtomicInteger();
+	final AtomicInteger starts = new AtomicInteger();
+	final AtomicInteger refreshes = new AtomicInteger();
+
+	final BundleContext context;
+	final PackageAdmin packageAdmin;
+
+	private final Map<Long, FakeBundle> bundles = new LinkedHashMap<Long, FakeBundle>();
+	private final List<FrameworkListener> frameworkListeners = new CopyOnWriteArrayList<FrameworkListener>();
+	private final ServiceReference packageAdminRef;
+	private final FakeBundle systemBundle;
+	private long nextId = 0L;
+
+	FakeFramework() {
+		context = proxy(BundleContext.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return invokeContext(method, args);
+			}
+		});
+		packageAdmin = proxy(PackageAdmin.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return invokePackageAdmin(method, args);
+			}
+		});
+		packageAdminRef = proxy(ServiceReference.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return defaultValue(method);
+			}
+		});
+		systemBundle = new FakeBundle(nextId++, Constants.SYSTEM_BUNDLE_LOCATION, new Content());
+		systemBundle.state = Bundle.ACTIVE;
+		bundles.put(systemBundle.id, systemBundle);
+	}
+
+	synchronized FakeBundle getBundle(String location) {
+		for (FakeBundle bundle : bundles.values()) {
+			if(bundle.location.equals(location))
+				return bundle;
+		}
+		return null;
+	}
+
+	synchronized int getBundleCount() {
+		return bundles.size() - 1;
+	}
+
+	/**
+	 * Fires a framework event to the registered listeners on the calling
+	 * thread.
+	 */
+	void fireFrameworkEvent(int type) {
+		FrameworkEvent event = new FrameworkEvent(type, systemBundle.proxy, null);
+		for (FrameworkListener listener : frameworkListeners) {
+			listener.frameworkEvent(event);
+		}
+	}
+
+	private Object invokeContext(Method method, Object[] args) throws Exception {
+		String name = method.getName();
+		if("installBundle".equals(name))
+			return installBundle((String) args[0], args.length > 1 ? (InputStream) args[1] : null).proxy;
+		if("getBundles".equals(name)) {
+			synchronized (this) {
+				List<Bundle> result = new ArrayList<Bundle>(bundles.size());
+				for (FakeBundle bundle : bundles.values()) {
+					result.add(bundle.proxy);
+				}
+				return result.toArray(new Bundle[result.size()]);
+			}
+		}
+		if("getBundle".equals(name)) {
+			if(args == null || args.length == 0)
+				return systemBundle.proxy;
+			synchronized (this) {
+				FakeBundle bundle = bundles.get(args[0]);
+				return bundle != null ? bundle.proxy : null;
+			}
+		}
+		if("getServiceReference".equals(name))
+			return PackageAdmin.class.getName().equals(args[0]) ? packageAdminRef : null;
+		if("getService".equals(name))
+			return args[0] == packageAdminRef ? packageAdmin : null;
+		if("addFrameworkListener".equals(name)) {
+			frameworkListeners.add((FrameworkListener) args[0]);
+			return null;
+		}
+		if("removeFrameworkListener".equals(name)) {
+			frameworkListeners.remove(args[0]);
+			return null;
+		}
+		if("getProperty".equals(name))
+			return System.getProperty((String) args[0]);
+		return defaultValue(method);
+	}
+
+	private Object invokePackageAdmin(Method method, Object[] args) throws Exception {
+		String name = method.getName();
+		if("resolveBundles".equals(name))
+			return Boolean.valueOf(resolveBundles((Bundle[]) args[0]));
+		if("refreshPackages".equals(name)) {
+			refreshPackages((Bundle[]) args[0]);
+			return null;
+		}
+		if("getExportedPackages".equals(name) && args[0] instanceof Bundle) {
+			FakeBundle bundle = find((Bundle) args[0]);
+			return bundle != null ? bundle.getExportedPackages() : null;
+		}
+		return defaultValue(method);
+	}
+
+	private FakeBundle installBundle(String location, InputStream stream) throws BundleException {
+		sleep(installMillis);
+		Content content = stream != null ? Content.read(stream) : Content.read(BundleInstaller.getBundleFile(location));
+		synchronized (this) {
+			FakeBundle existing = getBundle(location);
+			if(existing != null)
+				return existing;
+			FakeBundle bundle = new FakeBundle(nextId++, location, content);
+			bundles.put(bundle.id, bundle);
+			installs.incrementAndGet();
+			return bundle;
+		}
+	}
+
+	private boolean resolveBundles(Bundle[] toResolve) {
+		List<FakeBundle> candidates = new ArrayList<FakeBundle>();
+		synchronized (this) {
+			if(toResolve == null) {
+				candidates.addAll(bundles.values());
+			} else {
+				for (Bundle bundle : toResolve) {
+					FakeBundle fake = find(bundle);
+					if(fake != null)
+						candidates.add(fake);
+				}
+			}
+		}
+		boolean all = true;
+		for (FakeBundle bundle : candidates) {
+			if(bundle.state != Bundle.INSTALLED)
+				continue;
+			sleep(resolveMillis);
+			if(bundle.content.header(FAIL_RESOLVE) != null)
+				all = false;
+			else
+				bundle.state = Bundle.RESOLVED;
+		}
+		return all;
+	}
+
+	private void refreshPackages(final Bundle[] toRefresh) {
+		refreshes.incrementAndGet();
+		if(foreignRefreshEvents)
+			fireFrameworkEvent(FrameworkEvent.PACKAGES_REFRESHED);
+		Thread thread = new Thread("Fake Refresh") {
+			public void run() {
+				FakeFramework.sleep(refreshMillis);
+				synchronized (FakeFramework.this) {
+					for (Bundle bundle : toRefresh) {
+						FakeBundle fake = find(bundle);
+						if(fake != null)
+							fake.removalPending = false;
+					}
+				}
+				fireFrameworkEvent(FrameworkEvent.PACKAGES_REFRESHED);
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private synchronized FakeBundle find(Bundle bundle) {
+		if(bundle == null)
+			return null;
+		FakeBundle fake = bundles.get(bundle.getBundleId());
+		return fake != null && fake.proxy == bundle ? fake : null;
+	}
+
+	/**
+	 * A bundle with its content held in memory.
+	 */
+	class FakeBundle implements InvocationHandler {
+		final long id;
+		final String location;
+		final Bundle proxy;
+
+		volatile int state = Bundle.INSTALLED;
+		volatile Content content;
+		volatile long lastModified;
+		volatile boolean removalPending = false;
+
+		FakeBundle(long id, String location, Content content) {
+			this.id = id;
+			this.location = location;
+			this.content = content;
+			this.lastModified = System.currentTimeMillis();
+			this.proxy = proxy(Bundle.class, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if("getBundleId".equals(name))
+				return Long.valueOf(id);
+			if("getLocation".equals(name))
+				return location;
+			if("getState".equals(name))
+				return Integer.valueOf(state);
+			if("getLastModified".equals(name))
+				return Long.valueOf(lastModified);
+			if("getSymbolicName".equals(name))
+				return content.header(Constants.BUNDLE_SYMBOLICNAME);
+			if("getHeaders".equals(name))
+				return content.headers();
+			if("getEntry".equals(name))
+				return content.getEntry((String) args[0]);
+			if("getEntryPaths".equals(name))
+				return content.getEntryPaths((String) args[0]);
+			if("start".equals(name)) {
+				start();
+				return null;
+			}
+			if("stop".equals(name)) {
+				if(state == Bundle.ACTIVE)
+					state = Bundle.RESOLVED;
+				return null;
+			}
+			if("update".equals(name)) {
+				update(args != null && args.length > 0 ? (InputStream) args[0] : null);
+				return null;
+			}
+			if("uninstall".equals(name)) {
+				checkInstalled();
+				state = Bundle.UNINSTALLED;
+				synchronized (FakeFramework.this) {
+					bundles.remove(Long.valueOf(id));
+				}
+				uninstalls.incrementAndGet();
+				return null;
+			}
+			if("equals".equals(name))
+				return Boolean.valueOf(proxy == args[0]);
+			if("hashCode".equals(name))
+				return Integer.valueOf(System.identityHashCode(proxy));
+			if("toString".equals(name))
+				return location + " [" + id + "]";
+			return defaultValue(method);
+		}
+
+		private void start() throws BundleException {
+			checkInstalled();
+			if(content.header(Constants.FRAGMENT_HOST) != null)
+				throw new BundleException("Fragments cannot be started.");
+			if(state == Bundle.INSTALLED)
+				resolveBundles(new Bundle[] { proxy });
+			if(state == Bundle.INSTALLED)
+				throw new BundleException("Bundle " + location + " cannot be resolved.");
+			if(state == Bundle.ACTIVE)
+				return;
+			sleep(startMillis);
+			starts.incrementAndGet();
+			if(content.header(FAIL_START) != null || failingStarts.contains(location))
+				throw new BundleException("Activator of " + location + " failed.");
+			state = Bundle.ACTIVE;
+		}
+
+		private void update(InputStream stream) throws BundleException {
+			checkInstalled();
+			Content updated = stream != null ? Content.read(stream) : Content.read(BundleInstaller.getBundleFile(location));
+			if(content.header(Constants.EXPORT_PACKAGE) != null)
+				removalPending = true;
+			content = updated;
+			state = Bundle.INSTALLED;
+			lastModified = System.currentTimeMillis();
+			updates.incrementAndGet();
+		}
+
+		private void checkInstalled() {
+			if(state == Bundle.UNINSTALLED)
+				throw new IllegalStateException("Bundle " + location + " is uninstalled.");
+		}
+
+		private ExportedPackage[] getExportedPackages() {
+			String exports = content.header(Constants.EXPORT_PACKAGE);
+			if(exports == null && !removalPending)
+				return null;
+			List<ExportedPackage> result = new ArrayList<ExportedPackage>();
+			if(exports != null) {
+				for (String export : exports.split(",")) {
+					result.add(exportedPackage(export.trim(), false));
+				}
+			}
+			if(removalPending)
+				result.add(exportedPackage("previous.revision", true));
+			return result.toArray(new ExportedPackage[result.size()]);
+		}
+
+		private ExportedPackage exportedPackage(final String packageName, final boolean pending) {
+			return proxy(ExportedPackage.class, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if("getName".equals(method.getName()))
+						return packageName;
+					if("isRemovalPending".equals(method.getName()))
+						return Boolean.valueOf(pending);
+					if("getExportingBundle".equals(method.getName()))
+						return FakeBundle.this.proxy;
+					return defaultValue(method);
+				}
+			});
+		}
+	}
+
+	/**
+	 * The manifest and entries of a bundle.
+	 */
+	static final class Content {
+		final Manifest manifest;
+		final Map<String, byte[]> entries = new TreeMap<String, byte[]>();
+
+		Content() {
+			this.manifest = new Manifest();
+		}
+
+		Content(Manifest manifest) {
+			this.manifest = manifest != null ? manifest : new Manifest();
+		}
+
+		static Content read(File file) throws BundleException {
+			try {
+				if(file.isDirectory()) {
+					Content content = new Content(readManifest(new File(file, JarFile.MANIFEST_NAME)));
+					readDirectory(file, "", content);
+					return content;
+				}
+				return read(new FileInputStream(file));
+			} catch (IOException e) {
+				throw new BundleException("Unable to read bundle " + file, e);
+			}
+		}
+
+		static Content read(InputStream stream) throws BundleException {
+			try {
+				JarInputStream jar = new JarInputStream(stream);
+				try {
+					Content content = new Content(jar.getManifest());
+					JarEntry entry;
+					while((entry = jar.getNextJarEntry()) != null) {
+						if(!entry.isDirectory())
+							content.entries.put(entry.getName(), readFully(jar));
+					}
+					return content;
+				} finally {
+					jar.close();
+				}
+			} catch (IOException e) {
+				throw new BundleException("Unable to read bundle content.", e);
+			}
+		}
+
+		private static Manifest readManifest(File file) throws IOException {
+			if(!file.isFile())
+				return null;
+			InputStream in = new FileInputStream(file);
+			try {
+				return new Manifest(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		private static void readDirectory(File dir, String prefix, Content content) throws IOException {
+			File[] files = dir.listFiles();
+			if(files == null)
+				return;
+			for (File file : files) {
+				String name = prefix + file.getName();
+				if(file.isDirectory()) {
+					readDirectory(file, name + "/", content);
+				} else if(!JarFile.MANIFEST_NAME.equals(name)) {
+					InputStream in = new FileInputStream(file);
+					try {
+						content.entries.put(name, readFully(in));
+					} finally {
+						in.close();
+					}
+				}
+			}
+		}
+
+		String header(String name) {
+			return manifest.getMainAttributes().getValue(name);
+		}
+
+		Dictionary<String, String> headers() {
+			Hashtable<String, String> headers = new Hashtable<String, String>();
+			for (Entry<Object, Object> entry : manifest.getMainAttributes().entrySet()) {
+				headers.put(entry.getKey().toString(), entry.getValue().toString());
+			}
+			return headers;
+		}
+
+		URL getEntry(String path) throws IOException {
+			if(path.startsWith("/"))
+				path = path.substring(1);
+			if(JarFile.MANIFEST_NAME.equals(path)) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				manifest.write(out);
+				return url(path, out.toByteArray());
+			}
+			byte[] data = entries.get(path);
+			return data != null ? url(path, data) : null;
+		}
+
+		Enumeration<String> getEntryPaths(String path) {
+			if(path.startsWith("/"))
+				path = path.substring(1);
+			if(path.length() > 0 && !path.endsWith("/"))
+				path = path + "/";
+			TreeSet<String> children = new TreeSet<String>();
+			List<String> names = new ArrayList<String>(entries.keySet());
+			names.add(JarFile.MANIFEST_NAME);
+			for (String name : names) {
+				if(!name.startsWith(path) || name.equals(path))
+					continue;
+				int slash = name.indexOf('/', path.length());
+				children.add(slash < 0 ? name : name.substring(0, slash + 1));
+			}
+			return children.isEmpty() ? null : Collections.enumeration(children);
+		}
+
+		private static URL url(String path, final byte[] data) throws IOException {
+			return new URL("fake", "bundle", -1, "/" + path, new URLStreamHandler() {
+				protected URLConnection openConnection(URL u) {
+					return new URLConnection(u) {
+						public void connect() {}
+
+						public InputStream getInputStream() {
+							return new ByteArrayInputStream(data);
+						}
+					};
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes a bundle JAR with the specified headers and entries, given as
+	 * alternating names and contents.
+	 */
+	static File writeBundle(File file, Map<String, String> headers, String... entries) throws IOException {
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		for (Entry<String, String> header : headers.entrySet()) {
+			attributes.putValue(header.getKey(), header.getValue());
+		}
+		File parent = file.getParentFile();
+		if(parent != null)
+			parent.mkdirs();
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest);
+		try {
+			for (int i = 0; i + 1 < entries.length; i += 2) {
+				out.putNextEntry(new JarEntry(entries[i]));
+				out.write(entries[i + 1].getBytes("UTF-8"));
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Writes launch properties with the specified run bundles, setting the
+	 * modification time of the file.
+	 */
+	static void writeRunBundles(File propsFile, long lastModified, File... bundles) throws IOException {
+		StringBuilder runBundles = new StringBuilder();
+		for (File bundle : bundles) {
+			if(runBundles.length() > 0)
+				runBundles.append(',');
+			runBundles.append(bundle.getPath());
+		}
+		Properties props = new Properties();
+		props.setProperty(LauncherConstants.PROP_RUN_BUNDLES, runBundles.toString());
+		OutputStream out = new FileOutputStream(propsFile);
+		try {
+			props.store(out, null);
+		} finally {
+			out.close();
+		}
+		propsFile.setLastModified(lastModified);
+	}
+
+	/**
+	 * Returns headers for a bundle with the specified symbolic name, followed
+	 * by alternating header names and values.
+	 */
+	static Map<String, String> headers(String symbolicName, String... more) {
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+		headers.put(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+		for (int i = 0; i + 1 < more.length; i += 2) {
+			headers.put(more[i], more[i + 1]);
+		}
+		return headers;
+	}
+
+	static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	static void sleep(long millis) {
+		if(millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T proxy(Class<T> type, final InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(FakeFramework.class.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				try {
+					return handler.invoke(proxy, method, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		});
+	}
+
+	static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+		if(type == boolean.class)
+			return Boolean.FALSE;
+		if(type == int.class)
+			return Integer.valueOf(0);
+		if(type == long.class)
+			return Long.valueOf(0L);
+		return null;
+	}
+}
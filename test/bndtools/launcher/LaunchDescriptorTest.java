@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+
+public class LaunchDescriptorTest {
+
+	/** Offset of the length of the first property name. */
+	private static final int FIRST_STRING_OFFSET = 32;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Logger log = Logger.getLogger("bndtools.launcher");
+	private long propsLastModified = System.currentTimeMillis() - 60000;
+
+	@Test
+	public void roundTripKeepsPropertiesAndRunBundles() throws Exception {
+		File a = bundle("a.jar", "a");
+		File b = bundle("b.jar", "b", "Fragment-Host", "a");
+		File propsFile = writeProps("custom", "value", LauncherConstants.PROP_DEFAULT_START_OPTIONS, LauncherConstants.VALUE_START_TRANSIENT,
+				LauncherConstants.PROP_RUN_BUNDLES, a.getPath() + "," + b.getPath() + ";start=" + LauncherConstants.VALUE_NOSTART);
+
+		LaunchDescriptor.compile(propsFile, log);
+		LaunchDescriptor descriptor = LaunchDescriptor.load(propsFile, log);
+
+		assertNotNull(descriptor);
+		assertTrue(descriptor.isCurrent(propsFile));
+		assertEquals("value", descriptor.getProperties().getProperty("custom"));
+
+		Map<String, Integer> expected = new LinkedHashMap<String, Integer>();
+		int expectedDefault = BundleInstaller.parseRunBundles(descriptor.getProperties(), expected);
+		Map<String, Integer> runBundles = new LinkedHashMap<String, Integer>();
+		assertEquals(expectedDefault, descriptor.getRunBundles(runBundles));
+		assertEquals(Bundle.START_TRANSIENT, expectedDefault);
+		assertEquals(expected, runBundles);
+
+		LaunchDescriptor.BundleEntry entryA = descriptor.getEntry(location(a));
+		assertFalse(entryA.fragment);
+		assertEquals(SharedBundleStore.digest(a), entryA.digest);
+		assertTrue(entryA.matches(a));
+		assertTrue(descriptor.getEntry(location(b)).fragment);
+	}
+
+	@Test
+	public void changedPropertiesFileMakesItStale() throws Exception {
+		File a = bundle("a.jar", "a");
+		File propsFile = writeProps(LauncherConstants.PROP_RUN_BUNDLES, a.getPath());
+		LaunchDescriptor.compile(propsFile, log);
+
+		propsFile.setLastModified(propsLastModified + 10000);
+
+		assertNull(LaunchDescriptor.load(propsFile, log));
+	}
+
+	@Test
+	public void changedBundleMakesItStale() throws Exception {
+		File a = bundle("a.jar", "a");
+		File propsFile = writeProps(LauncherConstants.PROP_RUN_BUNDLES, a.getPath());
+		LaunchDescriptor.compile(propsFile, log);
+		assertNotNull(LaunchDescriptor.load(propsFile, log));
+
+		a.setLastModified(a.lastModified() + 10000);
+
+		assertNull(LaunchDescriptor.load(propsFile, log));
+	}
+
+	@Test
+	public void directoryBundleIsStampedByItsManifest() throws Exception {
+		File dir = new File(folder.getRoot(), "dirbundle");
+		File manifest = new File(dir, JarFile.MANIFEST_NAME);
+		manifest.getParentFile().mkdirs();
+		writeManifest(manifest, "Bundle-SymbolicName: d\nFragment-Host: a\n");
+		File propsFile = writeProps(LauncherConstants.PROP_RUN_BUNDLES, dir.getPath());
+
+		LaunchDescriptor.compile(propsFile, log);
+		LaunchDescriptor descriptor = LaunchDescriptor.load(propsFile, log);
+
+		assertNotNull(descriptor);
+		LaunchDescriptor.BundleEntry entry = descriptor.getEntry(location(dir));
+		assertTrue(entry.fragment);
+		assertNull(entry.digest);
+		assertTrue(entry.matches(dir));
+
+		// Editing the manifest leaves the directory itself untouched
+		long dirLastModified = dir.lastModified();
+		writeManifest(manifest, "Bundle-SymbolicName: d\n");
+		manifest.setLastModified(manifest.lastModified() + 10000);
+		dir.setLastModified(dirLastModified);
+
+		assertNull(LaunchDescriptor.load(propsFile, log));
+	}
+
+	@Test
+	public void invalidLengthIsRejected() throws Exception {
+		File propsFile = compiled();
+		RandomAccessFile file = new RandomAccessFile(LaunchDescriptor.getFile(propsFile), "rw");
+		try {
+			file.seek(FIRST_STRING_OFFSET);
+			file.writeInt(Integer.MAX_VALUE);
+		} finally {
+			file.close();
+		}
+		assertNull(LaunchDescriptor.load(propsFile, log));
+
+		file = new RandomAccessFile(LaunchDescriptor.getFile(propsFile), "rw");
+		try {
+			file.seek(FIRST_STRING_OFFSET);
+			file.writeInt(-1);
+		} finally {
+			file.close();
+		}
+		assertNull(LaunchDescriptor.load(propsFile, log));
+	}
+
+	@Test
+	public void truncatedDescriptorIsRejected() throws Exception {
+		File propsFile = compiled();
+		RandomAccessFile file = new RandomAccessFile(LaunchDescriptor.getFile(propsFile), "rw");
+		try {
+			file.setLength(file.length() - 3);
+		} finally {
+			file.close();
+		}
+
+		assertNull(LaunchDescriptor.load(propsFile, log));
+	}
+
+	private File compiled() throws IOException {
+		File a = bundle("a.jar", "a");
+		File propsFile = writeProps("custom", "value", LauncherConstants.PROP_RUN_BUNDLES, a.getPath());
+		LaunchDescriptor.compile(propsFile, log);
+		assertNotNull(LaunchDescriptor.load(propsFile, log));
+		return propsFile;
+	}
+
+	private File writeProps(String... nameValuePairs) throws IOException {
+		Properties props = new Properties();
+		for (int i = 0; i + 1 < nameValuePairs.length; i += 2)
+			props.setProperty(nameValuePairs[i], nameValuePairs[i + 1]);
+		File propsFile = new File(folder.getRoot(), "launch.properties");
+		OutputStream out = new FileOutputStream(propsFile);
+		try {
+			props.store(out, null);
+		} finally {
+			out.close();
+		}
+		propsFile.setLastModified(propsLastModified);
+		return propsFile;
+	}
+
+	private static void writeManifest(File file, String headers) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(("Manifest-Version: 1.0\n" + headers).getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private File bundle(String name, String symbolicName, String... headers) throws IOException {
+		return FakeFramework.writeBundle(new File(folder.getRoot(), name), FakeFramework.headers(symbolicName, headers), "data.txt", symbolicName);
+	}
+
+	private static String location(File file) {
+		return "file:" + file.getPath();
+	}
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SharedBundleStoreTest {
+
+	// Well past the garbage collection grace period
+	private static final long AN_HOUR = 60 * 60 * 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Logger log = Logger.getLogger("bndtools.launcher");
+
+	private File storeDir;
+	private File bundle;
+
+	@Before
+	public void setUp() throws IOException {
+		storeDir = new File(folder.getRoot(), "store");
+		bundle = FakeFramework.writeBundle(new File(folder.getRoot(), "a.jar"), FakeFramework.headers("a"), "data.txt", "a");
+	}
+
+	@Test
+	public void openStoresContentOnce() throws Exception {
+		SharedBundleStore store = newStore("a");
+		store.open();
+		try {
+			assertArrayEquals(read(bundle), readFully(store.open("file:a.jar", bundle)));
+			assertArrayEquals(read(bundle), readFully(store.open("file:b.jar", bundle)));
+		} finally {
+			store.close();
+		}
+
+		File entry = entry(bundle);
+		assertTrue(entry.isFile());
+		assertEquals(1, storeDir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".jar");
+			}
+		}).length);
+	}
+
+	@Test
+	public void unreferencedEntriesAreCollectedAfterGracePeriod() throws Exception {
+		SharedBundleStore store = newStore("a");
+		store.open();
+		try {
+			readFully(store.open("file:a.jar", bundle));
+			store.release("file:a.jar");
+			File entry = entry(bundle);
+
+			store.collectGarbage();
+			assertTrue("Entry within grace period must be kept", entry.isFile());
+
+			entry.setLastModified(System.currentTimeMillis() - AN_HOUR);
+			store.collectGarbage();
+			assertFalse(entry.isFile());
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void stoppedInstanceKeepsItsEntries() throws Exception {
+		SharedBundleStore a = newStore("a");
+		a.open();
+		readFully(a.open("file:a.jar", bundle));
+		a.close();
+		File entry = entry(bundle);
+		entry.setLastModified(System.currentTimeMillis() - AN_HOUR);
+
+		// A is stopped but its storage, and so its installed bundle, remains
+		SharedBundleStore b = newStore("b");
+		b.open();
+		try {
+			b.collectGarbage();
+			assertTrue(entry.isFile());
+
+			// A restarts with its references intact
+			a = newStore("a");
+			a.open();
+			a.close();
+			b.collectGarbage();
+			assertTrue(entry.isFile());
+
+			// Once A's storage is deleted its references go
+			FileUtil.deleteDirectory(new File(folder.getRoot(), "a"));
+			b.collectGarbage();
+			assertFalse(entry.isFile());
+		} finally {
+			b.close();
+		}
+	}
+
+	@Test
+	public void instanceCannotBeOpenedTwice() throws Exception {
+		SharedBundleStore first = newStore("a");
+		first.open();
+		try {
+			newStore("a").open();
+			throw new AssertionError("Second open of the same instance must fail");
+		} catch (IOException e) {
+			// Expected
+		} finally {
+			first.close();
+		}
+	}
+
+	private SharedBundleStore newStore(String instance) {
+		File storage = new File(folder.getRoot(), instance);
+		storage.mkdirs();
+		return new SharedBundleStore(storeDir, storage, log);
+	}
+
+	private File entry(File file) throws IOException {
+		return new File(storeDir, SharedBundleStore.digest(file) + ".jar");
+	}
+
+	private static byte[] read(File file) throws IOException {
+		return readFully(new FileInputStream(file));
+	}
+
+	private static byte[] readFully(InputStream input) throws IOException {
+		try {
+			return FakeFramework.readFully(input);
+		} finally {
+			input.close();
+		}
+	}
+}
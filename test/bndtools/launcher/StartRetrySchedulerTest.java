@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+
+import bndtools.launcher.BundleRegistry.BundleRecord;
+
+public class StartRetrySchedulerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FakeFramework framework;
+	private BundleInstaller installer;
+	private final AtomicInteger errorCallbacks = new AtomicInteger();
+	private long propsLastModified = System.currentTimeMillis() - 60000;
+
+	@Before
+	public void setUp() {
+		framework = new FakeFramework();
+	}
+
+	@After
+	public void tearDown() {
+		if(installer != null)
+			installer.close();
+	}
+
+	@Test
+	public void backoffDoublesUpToTheMaximum() {
+		assertEquals(100L, StartRetryScheduler.backoff(1, 100, 1000, 0.999));
+		assertEquals(200L, StartRetryScheduler.backoff(2, 100, 1000, 0.999));
+		assertEquals(400L, StartRetryScheduler.backoff(3, 100, 1000, 0.999));
+		assertEquals(800L, StartRetryScheduler.backoff(4, 100, 1000, 0.999));
+		assertEquals(1000L, StartRetryScheduler.backoff(5, 100, 1000, 0.999));
+		assertEquals(1000L, StartRetryScheduler.backoff(40, 100, 1000, 0.999));
+	}
+
+	@Test
+	public void jitterKeepsDelayBetweenHalfAndFull() {
+		for (int attempts = 1; attempts < 70; attempts++) {
+			long full = Math.min(101L << Math.min(attempts - 1, 30), 5001L);
+			long min = StartRetryScheduler.backoff(attempts, 101, 5001, 0.0);
+			long max = StartRetryScheduler.backoff(attempts, 101, 5001, Math.nextAfter(1.0, 0.0));
+			assertEquals((full + 1) / 2, min);
+			assertEquals(full, max);
+		}
+	}
+
+	@Test
+	public void retriesUntilStarted() throws Exception {
+		File a = bundle("a.jar", "a");
+		framework.failingStarts.add(location(a));
+		installer = newInstaller(a);
+		installer.setStartRetries(5, 20, 40);
+
+		assertEquals(1, installer.synchronizeBundles(true).size());
+		assertEquals(0, errorCallbacks.get());
+
+		framework.failingStarts.clear();
+		awaitState(a, Bundle.ACTIVE);
+		assertEquals(0, errorCallbacks.get());
+	}
+
+	@Test
+	public void errorCallbackWaitsUntilRetriesRunOut() throws Exception {
+		File a = bundle("a.jar", "a");
+		framework.failingStarts.add(location(a));
+		installer = newInstaller(a);
+		installer.setStartRetries(3, 20, 40);
+
+		assertEquals(1, installer.synchronizeBundles(true).size());
+		assertEquals(0, errorCallbacks.get());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while(errorCallbacks.get() == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(1, errorCallbacks.get());
+		assertEquals(3, framework.starts.get());
+	}
+
+	@Test
+	public void errorCallbackRunsWithoutRetries() throws Exception {
+		File a = bundle("a.jar", "a");
+		framework.failingStarts.add(location(a));
+		installer = newInstaller(a);
+
+		assertEquals(1, installer.synchronizeBundles(true).size());
+		assertEquals(1, errorCallbacks.get());
+	}
+
+	@Test
+	public void updateStartsCountingAttemptsAgain() throws Exception {
+		File a = bundle("a.jar", "a");
+		framework.failingStarts.add(location(a));
+		installer = newInstaller(a);
+		// Long enough that no retry is attempted during the test
+		installer.setStartRetries(2, 60000, 60000);
+		installer.synchronizeBundles(true);
+		StartRetryScheduler scheduler = installer.getRetryScheduler();
+		BundleRecord record = installer.getRecord(location(a));
+		assertTrue(scheduler.isPending(record));
+
+		// The updated bundle still fails, but gets its own attempts
+		Thread.sleep(20);
+		a.setLastModified(System.currentTimeMillis());
+		assertEquals(1, installer.synchronizeBundles(true).size());
+
+		assertTrue(scheduler.isPending(record));
+		assertEquals(0, errorCallbacks.get());
+	}
+
+	@Test
+	public void controlUpdateStartsCountingAttemptsAgain() throws Exception {
+		File a = bundle("a.jar", "a");
+		framework.failingStarts.add(location(a));
+		installer = newInstaller(a);
+		installer.setStartRetries(2, 60000, 60000);
+		installer.synchronizeBundles(true);
+		StartRetryScheduler scheduler = installer.getRetryScheduler();
+		BundleRecord record = installer.getRecord(location(a));
+		assertTrue(scheduler.isPending(record));
+
+		assertEquals(1, installer.updateBundle(a.getPath()).size());
+
+		assertTrue(scheduler.isPending(record));
+		assertEquals(0, errorCallbacks.get());
+		assertEquals(1, framework.updates.get());
+	}
+
+	@Test
+	public void uninstallForgetsPendingRetry() throws Exception {
+		File a = bundle("a.jar", "a");
+		File b = bundle("b.jar", "b");
+		framework.failingStarts.add(location(a));
+		installer = newInstaller(a, b);
+		installer.setStartRetries(5, 60000, 60000);
+		installer.synchronizeBundles(true);
+		StartRetryScheduler scheduler = installer.getRetryScheduler();
+		BundleRecord record = installer.getRecord(location(a));
+		assertTrue(scheduler.isPending(record));
+
+		writeProps(b);
+		installer.synchronizeBundles(true);
+
+		assertFalse(scheduler.isPending(record));
+	}
+
+	private void awaitState(File file, int state) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(framework.getBundle(location(file)).state != state && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(state, framework.getBundle(location(file)).state);
+	}
+
+	private BundleInstaller newInstaller(File... bundles) throws IOException {
+		writeProps(bundles);
+		return new BundleInstaller(new File(folder.getRoot(), "launch.properties"), framework.context, new Runnable() {
+			public void run() {
+				errorCallbacks.incrementAndGet();
+			}
+		});
+	}
+
+	private void writeProps(File... bundles) throws IOException {
+		propsLastModified += 10000;
+		FakeFramework.writeRunBundles(new File(folder.getRoot(), "launch.properties"), propsLastModified, bundles);
+	}
+
+	private File bundle(String name, String symbolicName) throws IOException {
+		return FakeFramework.writeBundle(new File(folder.getRoot(), name), FakeFramework.headers(symbolicName), "data.txt", symbolicName);
+	}
+
+	private static String location(File file) {
+		return "file:" + file.getPath();
+	}
+}
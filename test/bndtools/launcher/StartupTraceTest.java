@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import bndtools.launcher.StartupTrace.Span;
+
+public class StartupTraceTest {
+
+	private static final long MS = 1000000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void criticalPathFollowsLongestInstallAndImportChain() {
+		StartupTrace trace = newTrace();
+		Map<Long, Set<Long>> imports = new HashMap<Long, Set<Long>>();
+		imports.put(Long.valueOf(2), ids(1));
+		imports.put(Long.valueOf(3), ids(1));
+
+		List<Span> path = trace.analyse(imports);
+
+		assertEquals(Arrays.asList("framework", "install b", "resolve", "start a", "start c"), names(path));
+		Map<String, Span> spans = byName(trace);
+		assertEquals(0L, spans.get("install b").slack);
+		assertEquals(15 * MS, spans.get("install a").slack);
+		assertEquals(17 * MS, spans.get("install c").slack);
+		assertEquals(0L, spans.get("start a").slack);
+		assertEquals(0L, spans.get("start c").slack);
+		// b finishes at 25ms and could finish as late as c at 50ms
+		assertEquals(25 * MS, spans.get("start b").slack);
+		assertFalse(spans.get("start b").critical);
+	}
+
+	@Test
+	public void withoutImportsOnlyTheLongestStartIsCritical() {
+		StartupTrace trace = newTrace();
+
+		List<Span> path = trace.analyse(new HashMap<Long, Set<Long>>());
+
+		assertEquals(Arrays.asList("framework", "install b", "resolve", "start c"), names(path));
+		Map<String, Span> spans = byName(trace);
+		assertEquals(10 * MS, spans.get("start a").slack);
+		assertEquals(25 * MS, spans.get("start b").slack);
+	}
+
+	@Test
+	public void importCyclesAreBroken() {
+		StartupTrace trace = newTrace();
+		Map<Long, Set<Long>> imports = new HashMap<Long, Set<Long>>();
+		imports.put(Long.valueOf(1), ids(3));
+		imports.put(Long.valueOf(3), ids(1));
+
+		List<Span> path = trace.analyse(imports);
+
+		// One of the two edges is dropped, so both starts are still chained
+		List<String> names = names(path);
+		assertTrue(names.containsAll(Arrays.asList("start a", "start c")));
+		assertEquals(5, names.size());
+	}
+
+	@Test
+	public void traceIsLabelledAndLocaleIndependent() throws Exception {
+		File output = new File(folder.getRoot(), "trace.json");
+		Locale defaultLocale = Locale.getDefault();
+		Locale.setDefault(Locale.GERMANY);
+		try {
+			StartupTrace trace = new StartupTrace(output, Logger.getLogger("bndtools.launcher"));
+			trace.record(StartupTrace.PHASE_START, "file:a.jar", 1, 0L, 1500 * 1000L);
+			trace.finish(new FakeFramework().context);
+		} finally {
+			Locale.setDefault(defaultLocale);
+		}
+
+		FileInputStream input = new FileInputStream(output);
+		String json;
+		try {
+			json = new String(FakeFramework.readFully(input), "UTF-8");
+		} finally {
+			input.close();
+		}
+		assertTrue(json.contains("\"critical_path_model\":\"" + StartupTrace.MODEL + "\""));
+		assertTrue(json.contains("\"recorded_serial_ms\":\"1.500\""));
+		assertTrue(json.contains("\"parallel_critical_path_ms\":\"1.500\""));
+		assertTrue(json.contains("\"dur\":1500.000"));
+	}
+
+	/**
+	 * A trace with a 10ms framework start, installs of 5, 20 and 3ms, a 10ms
+	 * resolve and starts of 20, 5 and 30ms for bundles a, b and c with ids 1,
+	 * 2 and 3.
+	 */
+	private StartupTrace newTrace() {
+		StartupTrace trace = new StartupTrace(new File(folder.getRoot(), "trace.json"), Logger.getLogger("bndtools.launcher"));
+		trace.record(StartupTrace.PHASE_FRAMEWORK, null, 0, 0L, 10 * MS);
+		trace.record(StartupTrace.PHASE_INSTALL, "a", 1, 10 * MS, 15 * MS);
+		trace.record(StartupTrace.PHASE_INSTALL, "b", 2, 15 * MS, 35 * MS);
+		trace.record(StartupTrace.PHASE_INSTALL, "c", 3, 35 * MS, 38 * MS);
+		trace.record(StartupTrace.PHASE_RESOLVE, null, -1, 38 * MS, 48 * MS);
+		trace.record(StartupTrace.PHASE_START, "a", 1, 48 * MS, 68 * MS);
+		trace.record(StartupTrace.PHASE_START, "b", 2, 68 * MS, 73 * MS);
+		trace.record(StartupTrace.PHASE_START, "c", 3, 73 * MS, 103 * MS);
+		return trace;
+	}
+
+	private static Set<Long> ids(long... ids) {
+		Set<Long> set = new HashSet<Long>();
+		for (long id : ids)
+			set.add(Long.valueOf(id));
+		return set;
+	}
+
+	private static String name(Span span) {
+		return span.location != null ? span.phase + " " + span.location : span.phase;
+	}
+
+	private static List<String> names(List<Span> spans) {
+		List<String> names = new ArrayList<String>(spans.size());
+		for (Span span : spans)
+			names.add(name(span));
+		return names;
+	}
+
+	private static Map<String, Span> byName(StartupTrace trace) {
+		Map<String, Span> spans = new HashMap<String, Span>();
+		for (Span span : trace.getSpans())
+			spans.put(name(span), span);
+		return spans;
+	}
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Drives {@link BundleInstaller} against a {@link FakeFramework} with a
+ * synthetic run list, and reports how the cost of a synchronization cycle
+ * grows with the bundle count and the rate of change.
+ * <p>
+ * The defaults keep the run short enough for every build, and the report is
+ * only logged with {@code -Dbndtools.launcher.scaling.report=true}. Larger
+ * runs are configured with system properties, for example
+ * {@code -Dbndtools.launcher.scaling.report=true
+ * -Dbndtools.launcher.scaling.bundles=1000,10000
+ * -Dbndtools.launcher.scaling.churn=0,0.001,0.01
+ * -Dbndtools.launcher.scaling.startMillis=1}.
+ */
+public class SyncScalingTest {
+
+	private static final String PREFIX = "bndtools.launcher.scaling.";
+
+	private static final String[] BUNDLE_COUNTS = System.getProperty(PREFIX + "bundles", "100,1000").split(",");
+	private static final String[] CHURN_RATES = System.getProperty(PREFIX + "churn", "0,0.01,0.1").split(",");
+	private static final int CYCLES = Integer.getInteger(PREFIX + "cycles", 5).intValue();
+	private static final boolean REPORT = Boolean.getBoolean(PREFIX + "report");
+
+	private static final Logger log = Logger.getLogger("bndtools.launcher.scaling");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void synchronizeBundlesScaling() throws Exception {
+		report("bundles churn cycles mean.ms max.ms stats/cycle changes/cycle allocated.kb/cycle bundles/ms");
+		for (String bundles : BUNDLE_COUNTS) {
+			for (String rate : CHURN_RATES)
+				measureCycles(Integer.parseInt(bundles.trim()), Double.parseDouble(rate.trim()));
+		}
+	}
+
+	@Test
+	public void runLoopPicksUpChurn() throws Exception {
+		int bundles = Integer.parseInt(BUNDLE_COUNTS[0].trim());
+		FakeFramework framework = newFramework();
+		ChurnGenerator generator = new ChurnGenerator(folder.newFolder("run"), 42);
+		generator.createRunList(bundles);
+		BundleInstaller installer = new BundleInstaller(generator.getPropsFile(), framework.context, null);
+		installer.setSyncInterval(20);
+		installer.synchronizeBundles(true);
+
+		Thread thread = new Thread(installer, "Scaling Bundle Installer");
+		thread.start();
+		try {
+			// Files are only picked up once they are a couple of seconds old
+			FakeFramework.sleep(2);
+			long churnStart = System.currentTimeMillis();
+			long cyclesBefore = installer.getMetrics().getSyncCycles();
+			int updatesBefore = framework.updates.get();
+			int installsBefore = framework.installs.get();
+			int uninstallsBefore = framework.uninstalls.get();
+			int changes = generator.churn(0.1);
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while(changes(framework, updatesBefore, installsBefore, uninstallsBefore) < changes && System.currentTimeMillis() < deadline)
+				Thread.sleep(20);
+
+			assertEquals(changes, changes(framework, updatesBefore, installsBefore, uninstallsBefore));
+			assertEquals(generator.getRunBundleCount(), framework.getBundleCount());
+			long cycles = installer.getMetrics().getSyncCycles() - cyclesBefore;
+			report(String.format(Locale.ROOT, "run loop: %d bundles, %d changes picked up after %dms and %d cycles", bundles, changes,
+					System.currentTimeMillis() - churnStart, cycles));
+		} finally {
+			thread.interrupt();
+			thread.join();
+			installer.close();
+		}
+	}
+
+	private void measureCycles(int bundles, double rate) throws Exception {
+		FakeFramework framework = newFramework();
+		ChurnGenerator generator = new ChurnGenerator(folder.newFolder(), 42);
+		generator.createRunList(bundles);
+		BundleInstaller installer = new BundleInstaller(generator.getPropsFile(), framework.context, null);
+		LauncherMetrics metrics = installer.getMetrics();
+		try {
+			assertTrue(installer.synchronizeBundles(true).isEmpty());
+			assertEquals(bundles, framework.getBundleCount());
+
+			long totalNanos = 0L;
+			long maxNanos = 0L;
+			long totalStats = 0L;
+			long totalChanges = 0L;
+			long totalAllocated = 0L;
+			double totalBundlesPerMilli = 0d;
+			for (int i = 0; i < CYCLES; i++) {
+				// Keep churned files newer than the bundles they replace
+				FakeFramework.sleep(2);
+				int changes = generator.churn(rate);
+				assertTrue(installer.synchronizeBundles(true).isEmpty());
+
+				assertEquals(changes, metrics.getLastChanges());
+				if(changes == 0)
+					assertEquals(1 + framework.getBundleCount(), metrics.getLastStatCalls());
+				totalNanos += metrics.getLastSyncNanos();
+				maxNanos = Math.max(maxNanos, metrics.getLastSyncNanos());
+				totalStats += metrics.getLastStatCalls();
+				totalChanges += metrics.getLastChanges();
+				totalAllocated += Math.max(0L, metrics.getLastAllocatedBytes());
+				totalBundlesPerMilli += metrics.getLastBundlesPerMilli();
+			}
+			assertEquals(generator.getRunBundleCount(), framework.getBundleCount());
+
+			report(String.format(Locale.ROOT, "%d %.3f %d %.3f %.3f %.1f %.1f %.1f %.1f", bundles, rate, CYCLES, totalNanos / 1e6 / CYCLES,
+					maxNanos / 1e6, (double) totalStats / CYCLES, (double) totalChanges / CYCLES, totalAllocated / 1024d / CYCLES,
+					totalBundlesPerMilli / CYCLES));
+		} finally {
+			installer.close();
+		}
+	}
+
+	private static void report(String line) {
+		if(REPORT)
+			log.info(line);
+	}
+
+	private static FakeFramework newFramework() {
+		FakeFramework framework = new FakeFramework();
+		framework.installMillis = Long.getLong(PREFIX + "installMillis", 0L).longValue();
+		framework.resolveMillis = Long.getLong(PREFIX + "resolveMillis", 0L).longValue();
+		framework.startMillis = Long.getLong(PREFIX + "startMillis", 0L).longValue();
+		return framework;
+	}
+
+	private static int changes(FakeFramework framework, int updatesBefore, int installsBefore, int uninstallsBefore) {
+		return framework.updates.get() - updatesBefore + framework.installs.get() - installsBefore + framework.uninstalls.get() - uninstallsBefore;
+	}
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+
+public class SyncSchedulerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void stuckSynchronizationDoesNotHoldUpOthers() throws Exception {
+		FakeFramework stuck = new FakeFramework();
+		stuck.startMillis = 10000;
+		FakeFramework other = new FakeFramework();
+		File stuckBundle = bundle("stuck", "a.jar");
+		File otherBundle = bundle("other", "a.jar");
+		BundleInstaller stuckInstaller = newInstaller(stuck, stuckBundle);
+		BundleInstaller otherInstaller = newInstaller(other, otherBundle);
+
+		SyncScheduler scheduler = new SyncScheduler();
+		scheduler.add(stuckInstaller);
+		scheduler.add(otherInstaller);
+		scheduler.start();
+		try {
+			long deadline = System.currentTimeMillis() + 5000;
+			while(!isActive(other, otherBundle) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+
+			assertTrue(isActive(other, otherBundle));
+			assertEquals(Bundle.RESOLVED, stuck.getBundle(location(stuckBundle)).state);
+		} finally {
+			scheduler.stop();
+		}
+	}
+
+	private static boolean isActive(FakeFramework framework, File file) {
+		FakeFramework.FakeBundle bundle = framework.getBundle(location(file));
+		return bundle != null && bundle.state == Bundle.ACTIVE;
+	}
+
+	private BundleInstaller newInstaller(FakeFramework framework, File bundle) throws IOException {
+		File propsFile = new File(bundle.getParentFile(), "launch.properties");
+		FakeFramework.writeRunBundles(propsFile, System.currentTimeMillis() - 60000, bundle);
+		return new BundleInstaller(propsFile, framework.context, null);
+	}
+
+	private File bundle(String dir, String name) throws IOException {
+		return FakeFramework.writeBundle(new File(folder.newFolder(dir), name), FakeFramework.headers(dir), "data.txt", dir);
+	}
+
+	private static String location(File file) {
+		return "file:" + file.getPath();
+	}
+}
@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Neil Bartlett.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Neil Bartlett - initial API and implementation
+ ******************************************************************************/
+package bndtools.launcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+import bndtools.launcher.BundleInstaller.BundleOperationException;
+import bndtools.launcher.FakeFramework.FakeBundle;
+
+public class SyncTransactionTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FakeFramework framework;
+	private File propsFile;
+	private File backupDir;
+	private final AtomicInteger errorCallbacks = new AtomicInteger();
+	private long propsLastModified = System.currentTimeMillis() - 60000;
+
+	@Before
+	public void setUp() throws IOException {
+		framework = new FakeFramework();
+		propsFile = folder.newFile("launch.properties");
+		backupDir = new File(folder.getRoot(), "runtimefw.lastgood");
+	}
+
+	@Test
+	public void firstFailedBatchIsKept() throws Exception {
+		File a = bundle("a.jar", "a", "one");
+		File b = bundle("b.jar", "b", "one", FakeFramework.FAIL_START, "true");
+		BundleInstaller installer = newInstaller(a, b);
+
+		List<BundleOperationException> errors = installer.synchronizeBundles(true);
+
+		assertEquals(1, errors.size());
+		assertEquals(1, errorCallbacks.get());
+		assertEquals(0L, installer.getMetrics().getRollbacks());
+		assertEquals(Bundle.ACTIVE, framework.getBundle(location(a)).state);
+		assertNotNull(framework.getBundle(location(b)));
+	}
+
+	@Test
+	public void noCopiesAreMadeOnInstall() throws Exception {
+		BundleInstaller installer = newInstaller(bundle("a.jar", "a", "one"), bundle("b.jar", "b", "one"));
+
+		assertTrue(installer.synchronizeBundles(true).isEmpty());
+
+		assertEquals(0, backupCount());
+	}
+
+	@Test
+	public void failedUpdateIsRolledBack() throws Exception {
+		File a = bundle("a.jar", "a", "one");
+		BundleInstaller installer = newInstaller(a);
+		assertTrue(installer.synchronizeBundles(true).isEmpty());
+
+		bundle("a.jar", "a", "two", FakeFramework.FAIL_START, "true");
+		touch(a);
+		List<BundleOperationException> errors = installer.synchronizeBundles(true);
+
+		assertEquals(1, errors.size());
+		assertEquals(0, errorCallbacks.get());
+		assertEquals(1L, installer.getMetrics().getRollbacks());
+		FakeBundle bundle = framework.getBundle(location(a));
+		assertEquals("one", read(bundle.content.getEntry("data.txt").openStream()));
+		assertNull(bundle.content.header(FakeFramework.FAIL_START));
+		assertEquals(Bundle.ACTIVE, bundle.state);
+		assertEquals(1, backupCount());
+	}
+
+	@Test
+	public void failedBatchReinstatesRemovedBundle() throws Exception {
+		File a = bundle("a.jar", "a", "one");
+		File b = bundle("b.jar", "b", "one");
+		File c = bundle("c.jar", "c", "one", FakeFramework.FAIL_START, "true");
+		BundleInstaller installer = newInstaller(a, b);
+		assertTrue(installer.synchronizeBundles(true).isEmpty());
+		long removedId = framework.getBundle(location(b)).id;
+
+		writeProps(a, c);
+		List<BundleOperationException> errors = installer.synchronizeBundles(true);
+
+		assertEquals(1, errors.size());
+		assertEquals(0, errorCallbacks.get());
+		FakeBundle reinstated = framework.getBundle(location(b));
+		assertNotNull(reinstated);
+		assertTrue(reinstated.id != removedId);
+		assertEquals(Bundle.ACTIVE, reinstated.state);
+		assertNull(framework.getBundle(location(c)));
+		assertEquals(Bundle.ACTIVE, framework.getBundle(location(a)).state);
+	}
+
+	@Test
+	public void rollbackKeepsSharedStoreReferencesInStep() throws Exception {
+		File a = bundle("a.jar", "a", "one");
+		File b = bundle("b.jar", "b", "one");
+		File c = bundle("c.jar", "c", "one", FakeFramework.FAIL_START, "true");
+		BundleInstaller installer = newInstaller(a, b);
+		SharedBundleStore store = new SharedBundleStore(new File(folder.getRoot(), "store"), folder.newFolder("storage"), Logger.getLogger("bndtools.launcher"));
+		store.open();
+		try {
+			installer.setSharedStore(store);
+			assertTrue(installer.synchronizeBundles(true).isEmpty());
+
+			// Update a, remove b and add c, which fails to start
+			bundle("a.jar", "a", "two");
+			touch(a);
+			writeProps(a, c);
+			assertEquals(1, installer.synchronizeBundles(true).size());
+
+			assertNull(store.getReference(location(c)));
+			assertNotNull(store.getReference(location(b)));
+			JarFile restored = new JarFile(store.getEntry(store.getReference(location(a))));
+			try {
+				assertEquals("one", read(restored.getInputStream(restored.getEntry("data.txt"))));
+			} finally {
+				restored.close();
+			}
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void committedBatchDiscardsCopies() throws Exception {
+		File a = bundle("a.jar", "a", "one");
+		BundleInstaller installer = newInstaller(a);
+		assertTrue(installer.synchronizeBundles(true).isEmpty());
+
+		bundle("a.jar", "a", "two");
+		touch(a);
+		assertTrue(installer.synchronizeBundles(true).isEmpty());
+
+		assertEquals("two", read(framework.getBundle(location(a)).content.getEntry("data.txt").openStream()));
+		assertEquals(0, backupCount());
+	}
+
+	@Test
+	public void refreshWaitsForItsOwnEvent() throws Exception {
+		framework.foreignRefreshEvents = true;
+		framework.refreshMillis = 200;
+		File a = bundle("a.jar", "a", "one", Constants.EXPORT_PACKAGE, "a");
+		BundleInstaller installer = newInstaller(a);
+		assertTrue(installer.synchronizeBundles(true).isEmpty());
+		FakeBundle bundle = framework.getBundle(location(a));
+		bundle.proxy.update(new FileInputStream(a));
+		assertTrue(bundle.removalPending);
+
+		installer.refreshBundles(new Bundle[] { bundle.proxy });
+
+		assertFalse(bundle.removalPending);
+	}
+
+	@Test
+	public void exportedBundleHoldsInstalledContent() throws Exception {
+		File a = bundle("a.jar", "a", "one");
+		BundleInstaller installer = newInstaller(a);
+		assertTrue(installer.synchronizeBundles(true).isEmpty());
+
+		File exported = new File(folder.getRoot(), "exported.jar");
+		SyncTransaction.exportBundle(framework.getBundle(location(a)).proxy, exported);
+
+		JarFile jar = new JarFile(exported);
+		try {
+			assertEquals("a", jar.getManifest().getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME));
+			assertEquals("one", read(jar.getInputStream(jar.getEntry("data.txt"))));
+			assertEquals("nested", read(jar.getInputStream(jar.getEntry("dir/nested.txt"))));
+		} finally {
+			jar.close();
+		}
+	}
+
+	private BundleInstaller newInstaller(File... bundles) throws IOException {
+		writeProps(bundles);
+		BundleInstaller installer = new BundleInstaller(propsFile, framework.context, new Runnable() {
+			public void run() {
+				errorCallbacks.incrementAndGet();
+			}
+		});
+		installer.enableTransactions(backupDir);
+		return installer;
+	}
+
+	private void writeProps(File... bundles) throws IOException {
+		// Each write must be seen as a change
+		propsLastModified += 10000;
+		FakeFramework.writeRunBundles(propsFile, propsLastModified, bundles);
+	}
+
+	private File bundle(String name, String symbolicName, String data, String... headers) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		FakeFramework.writeBundle(file, FakeFramework.headers(symbolicName, headers), "data.txt", data, "dir/nested.txt", "nested");
+		return file;
+	}
+
+	/**
+	 * Marks a bundle file as changed after its bundle was installed.
+	 */
+	private static void touch(File file) throws InterruptedException {
+		Thread.sleep(20);
+		file.setLastModified(System.currentTimeMillis());
+	}
+
+	private static String location(File file) {
+		return "file:" + file.getPath();
+	}
+
+	private int backupCount() {
+		String[] names = backupDir.list();
+		return names != null ? names.length : 0;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		try {
+			return new String(FakeFramework.readFully(in), "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}